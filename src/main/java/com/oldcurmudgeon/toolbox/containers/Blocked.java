@@ -15,13 +15,20 @@
  */
 package com.oldcurmudgeon.toolbox.containers;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * Use one of these to block on a spin-lock.
+ * <p>
+ * Waiters either wait on the Condition (await) or park themselves (park).
+ * Each release lets one of each through. See WaitStrategy.
  *
  * @author OldCurmudgeon
  */
@@ -30,27 +37,107 @@ public class Blocked {
     private final ReentrantLock lock = new ReentrantLock();
     // Let someone through.
     private final Condition go = lock.newCondition();
+    // How many are waiting on go - so release can skip the lock when none are.
+    private final AtomicInteger waiting = new AtomicInteger();
+    // Threads parked waiting.
+    private final Queue<Parked> parked = new ConcurrentLinkedQueue<>();
+
+    // A parked thread.
+    private static class Parked {
+        final Thread thread = Thread.currentThread();
+        // Still in the queue - release takes it out.
+        volatile boolean queued = true;
+    }
 
     public final void await() throws InterruptedException {
         lock.lock();
+        waiting.incrementAndGet();
         try {
             // Wait for someone to release.
             go.await();
         } finally {
+            waiting.decrementAndGet();
             lock.unlock();
         }
     }
 
-    public final void release() {
+    /**
+     * Wait on the Condition until ready.
+     * <p>
+     * Ready is checked under the lock so a release between the check and the
+     * wait can't be lost - as long as whatever makes it ready happens before
+     * the release.
+     *
+     * @param ready BooleanSupplier
+     * @throws InterruptedException
+     */
+    public final void await(BooleanSupplier ready) throws InterruptedException {
         lock.lock();
+        waiting.incrementAndGet();
         try {
-            // Let someone through.
-            go.signal();
+            while (!ready.getAsBoolean()) {
+                go.await();
+            }
         } finally {
+            waiting.decrementAndGet();
             lock.unlock();
         }
     }
 
+    /**
+     * Park until ready - no lock.
+     * <p>
+     * We queue up before checking so a release after the check unparks us and
+     * the park returns at once.
+     *
+     * @param ready BooleanSupplier
+     * @param nanos long - longest to park each time, 0 for no limit.
+     * @throws InterruptedException
+     */
+    public final void park(BooleanSupplier ready, long nanos) throws InterruptedException {
+        Parked me = new Parked();
+        parked.add(me);
+        try {
+            while (!ready.getAsBoolean()) {
+                if (nanos > 0) {
+                    LockSupport.parkNanos(this, nanos);
+                } else {
+                    LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                // Released - back in the queue in case it wasn't for us.
+                if (!me.queued) {
+                    me.queued = true;
+                    parked.add(me);
+                }
+            }
+        } finally {
+            if (me.queued) {
+                parked.remove(me);
+            }
+        }
+    }
+
+    public final void release() {
+        // Unpark one.
+        Parked p = parked.poll();
+        if (p != null) {
+            p.queued = false;
+            LockSupport.unpark(p.thread);
+        }
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                // Let someone through.
+                go.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     private static class Test implements Runnable {
         private final Blocked blocked;
         private final AtomicBoolean wait;
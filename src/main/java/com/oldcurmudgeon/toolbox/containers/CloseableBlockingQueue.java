@@ -26,7 +26,7 @@ public class CloseableBlockingQueue<E> extends ArrayBlockingQueue<E> {
     private volatile boolean closed = false;
     // All blocked threads. Actually this is all threads that are in the process
     // of invoking a put but if put doesn't block then they disappear pretty fast.
-    // NB: Container is O(1) for get and almost O(1) (depending on how busy it is) for put.
+    // NB: Container is O(1) for both put and remove.
     private final Container<Thread> blocked;
 
     // Limited size.
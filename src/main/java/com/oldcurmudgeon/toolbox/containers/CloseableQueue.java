@@ -0,0 +1,435 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.containers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking queue that can be closed.
+ * <p>
+ * Once closed nothing more goes in and anyone blocked putting is woken - put
+ * returns false. Whatever is already in it can still be taken. When it is
+ * closed AND empty it has ended - take returns null. No poison pills and no
+ * interrupts.
+ * <p>
+ * putAll and drainTo move many at a time for one trip through the lock.
+ * <p>
+ * Replaces CloseableBlockingQueue which tracks every putting thread and
+ * interrupts them all on close.
+ *
+ * @param <E> - The type of the elements.
+ * @author OldCurmudgeon
+ */
+public class CloseableQueue<E> implements AutoCloseable {
+    // The ring.
+    private final Object[] items;
+    // Where the next take comes from.
+    private int takeIndex = 0;
+    // Where the next put goes.
+    private int putIndex = 0;
+    // How many in it.
+    private int count = 0;
+    // No more puts.
+    private volatile boolean closed = false;
+    // Guards everything.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Something to take - or ended.
+    private final Condition notEmpty = lock.newCondition();
+    // Room to put - or closed.
+    private final Condition notFull = lock.newCondition();
+
+    public CloseableQueue(int capacity) {
+        // Sanity checks.
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        }
+        items = new Object[capacity];
+    }
+
+    /**
+     * Put one - waiting for room.
+     *
+     * @param e E
+     * @return boolean - false if closed, it did not go in.
+     * @throws InterruptedException
+     */
+    public boolean put(E e) throws InterruptedException {
+        check(e);
+        lock.lockInterruptibly();
+        try {
+            while (count == items.length && !closed) {
+                notFull.await();
+            }
+            if (closed) {
+                return false;
+            }
+            enqueue(e);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put one if there is room.
+     *
+     * @param e E
+     * @return boolean - false if full or closed.
+     */
+    public boolean offer(E e) {
+        check(e);
+        lock.lock();
+        try {
+            if (closed || count == items.length) {
+                return false;
+            }
+            enqueue(e);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put them all - in as few trips through the lock as there is room for.
+     *
+     * @param all Collection
+     * @return int - how many went in. Fewer than all if closed.
+     * @throws InterruptedException
+     */
+    public int putAll(Collection<? extends E> all) throws InterruptedException {
+        for (E e : all) {
+            check(e);
+        }
+        Iterator<? extends E> it = all.iterator();
+        int added = 0;
+        while (it.hasNext()) {
+            lock.lockInterruptibly();
+            try {
+                while (count == items.length && !closed) {
+                    notFull.await();
+                }
+                if (closed) {
+                    break;
+                }
+                int before = added;
+                while (count < items.length && it.hasNext()) {
+                    enqueue(it.next());
+                    added += 1;
+                }
+                wake(notEmpty, added - before);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Take one - waiting for one to arrive.
+     *
+     * @return E - null if it has ended.
+     * @throws InterruptedException
+     */
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 && !closed) {
+                notEmpty.await();
+            }
+            return count > 0 ? takeOne() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take one if there is one.
+     *
+     * @return E - null if empty.
+     */
+    public E poll() {
+        lock.lock();
+        try {
+            return count > 0 ? takeOne() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take one - waiting a while for one to arrive.
+     *
+     * @param timeout long
+     * @param unit    TimeUnit
+     * @return E - null if none arrived in time or it has ended - see isEnded.
+     * @throws InterruptedException
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return count > 0 ? takeOne() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take all there are, up to max, without waiting.
+     *
+     * @param to  Collection
+     * @param max int
+     * @return int - how many were taken.
+     */
+    public int drainTo(Collection<? super E> to, int max) {
+        lock.lock();
+        try {
+            return drain(to, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take all there are, up to max, waiting for at least one.
+     *
+     * @param to  Collection
+     * @param max int
+     * @return int - how many were taken, 0 only if it has ended.
+     * @throws InterruptedException
+     */
+    public int takeAll(Collection<? super E> to, int max) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 && !closed) {
+                notEmpty.await();
+            }
+            return drain(to, max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No more puts. Wakes everyone waiting.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throw away everything in it.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            int n = count;
+            while (count > 0) {
+                dequeue();
+            }
+            wake(notFull, n);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Closed and nothing left to take.
+    public boolean isEnded() {
+        lock.lock();
+        try {
+            return closed && count == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return items.length - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Under the lock.
+    private int drain(Collection<? super E> to, int max) {
+        int n = Math.min(max, count);
+        for (int i = 0; i < n; i++) {
+            to.add(dequeue());
+        }
+        wake(notFull, n);
+        return n;
+    }
+
+    // Under the lock - there is one.
+    private E takeOne() {
+        E e = dequeue();
+        notFull.signal();
+        return e;
+    }
+
+    // Under the lock - there is room.
+    private void enqueue(E e) {
+        items[putIndex] = e;
+        if (++putIndex == items.length) {
+            putIndex = 0;
+        }
+        count += 1;
+    }
+
+    // Under the lock - there is one.
+    private E dequeue() {
+        @SuppressWarnings("unchecked")
+        E e = (E) items[takeIndex];
+        items[takeIndex] = null;
+        if (++takeIndex == items.length) {
+            takeIndex = 0;
+        }
+        count -= 1;
+        return e;
+    }
+
+    // One or all of them.
+    private static void wake(Condition c, int n) {
+        if (n == 1) {
+            c.signal();
+        } else if (n > 1) {
+            c.signalAll();
+        }
+    }
+
+    private static void check(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "CloseableQueue(" + count + "/" + items.length + (closed ? ",closed" : "") + ")";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ***** Following only needed for testing. *****
+    public static void main(String[] args) throws InterruptedException {
+        final int n = 2000000;
+        for (int batch : new int[]{1, 64}) {
+            final CloseableQueue<Integer> q = new CloseableQueue<>(1024);
+            Thread producer = new Thread(() -> {
+                try {
+                    List<Integer> some = new ArrayList<>(batch);
+                    for (int i = 0; i < n; i++) {
+                        if (batch == 1) {
+                            q.put(i);
+                        } else {
+                            some.add(i);
+                            if (some.size() == batch) {
+                                q.putAll(some);
+                                some.clear();
+                            }
+                        }
+                    }
+                    q.putAll(some);
+                } catch (InterruptedException ex) {
+                    // Done.
+                }
+                // End of stream.
+                q.close();
+            });
+            long start = System.nanoTime();
+            producer.start();
+            long sum = 0;
+            int got = 0;
+            List<Integer> took = new ArrayList<>(batch);
+            while (true) {
+                if (batch == 1) {
+                    Integer i = q.take();
+                    if (i == null) {
+                        break;
+                    }
+                    sum += i;
+                    got += 1;
+                } else {
+                    took.clear();
+                    if (q.takeAll(took, batch) == 0) {
+                        break;
+                    }
+                    for (Integer i : took) {
+                        sum += i;
+                    }
+                    got += took.size();
+                }
+            }
+            producer.join();
+            long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println("batch=" + batch + " got=" + got + " sum ok=" + (sum == (long) n * (n - 1) / 2) + " " + ms + "ms");
+        }
+        // Close wakes blocked producers.
+        final CloseableQueue<String> q = new CloseableQueue<>(1);
+        q.put("full");
+        Thread blocked = new Thread(() -> {
+            try {
+                System.out.println("put after close: " + q.put("blocked"));
+            } catch (InterruptedException ex) {
+                System.out.println("Interrupted!");
+            }
+        });
+        blocked.start();
+        Thread.sleep(100);
+        q.close();
+        blocked.join();
+        System.out.println("take: " + q.take() + " then: " + q.take() + " ended: " + q.isEnded());
+    }
+
+}
@@ -21,11 +21,11 @@ import com.oldcurmudgeon.toolbox.walkers.Separator;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
 
 /**
  * Container
@@ -62,6 +62,18 @@ import java.util.concurrent.atomic.AtomicReference;
  * every allocate.
  * <p>
  * Adding (with my tests) is now very close to O(1) too.
+ * <p>
+ * Implementation 5 - A ring of free nodes
+ * ---------------------------------------
+ * <p>
+ * Implementation 4 still walks the ring CASing each node when it is busy and
+ * size is a full scan so both get worse as the capacity grows.
+ * <p>
+ * Now the free nodes sit in a bounded multi-producer multi-consumer ring
+ * (after Dmitry Vyukov) where each slot carries a sequence number. Taking a
+ * free node is one CAS on the dequeue position, freeing one is one CAS on the
+ * enqueue position - both O(1). The positions are padded onto their own cache
+ * lines and the size is just the difference between them.
  *
  * @param <T> - The type of object in the container.
  * @author OldCurmudgeon
@@ -70,32 +82,36 @@ import java.util.concurrent.atomic.AtomicReference;
 public class Container<T> implements Iterable<T> {
     // The maximum capacity of the container.
     final int capacity;
-    // The list.
-    final AtomicReference<Node<T>> head = new AtomicReference<>();
-    // Queue of threads blocked on put.
-    private final Queue<Thread> waiting = new ConcurrentLinkedQueue();
+    // All the nodes - for iterating.
+    final Node<T>[] nodes;
+    // The free ones.
+    private final FreeRing<T> free;
+    // How to wait for a free one.
+    private final WaitStrategy wait;
 
     // Constructor
     public Container(int capacity) {
+        this(capacity, WaitStrategy.Blocking);
+    }
+
+    // Constructor - choosing how put waits.
+    public Container(int capacity, WaitStrategy wait) {
         // Sanity checks.
         if (capacity <= 0) {
             throw new IllegalArgumentException("Capacity must be greater than zero.");
         }
         this.capacity = capacity;
-        // Construct the list.
-        Node<T> h = new Node<>();
-        Node<T> it = h;
-        // One created, now add (capacity - 1) more
-        for (int i = 0; i < capacity - 1; i++) {
-            // Add it.
-            it.next = new Node<>();
-            // Step on to it.
-            it = it.next;
-        }
-        // Make it a ring.
-        it.next = h;
-        // Install it.
-        head.set(h);
+        this.wait = wait;
+        // Construct the nodes.
+        nodes = new Node[capacity];
+        for (int i = 0; i < capacity; i++) {
+            nodes[i] = new Node<>();
+        }
+        // All free.
+        free = new FreeRing<>(capacity);
+        for (Node<T> n : nodes) {
+            free.offer(n);
+        }
     }
 
     // Add a new one - throw an exception if no room.
@@ -140,23 +156,11 @@ public class Container<T> implements Iterable<T> {
         } while (true);
     }
 
-    // Find the next free element and mark it not free.
+    // Take the next free node and mark it not free.
     private Node<T> getFree() {
-        Node<T> freeNode = head.get();
-        int skipped = 0;
-        // Stop when we hit the end of the list
-        // ... or we successfully transit a node from free to not-free.
-        while (skipped < capacity && !freeNode.free.compareAndSet(true, false)) {
-            skipped += 1;
-            freeNode = freeNode.next;
-        }
-        if (skipped < capacity) {
-            // Put the head as next.
-            // Doesn't matter if it fails. That would just mean someone else was doing the same.
-            head.set(freeNode.next);
-        } else {
-            // We hit the end! No more free nodes.
-            freeNode = null;
+        Node<T> freeNode = free.poll();
+        if (freeNode != null && !freeNode.free.compareAndSet(true, false)) {
+            throw new IllegalStateException("Free ring held a used node.");
         }
         return freeNode;
     }
@@ -169,6 +173,11 @@ public class Container<T> implements Iterable<T> {
         if (!it.free.compareAndSet(false, true)) {
             throw new IllegalStateException("Freeing a freed node.");
         }
+        // Back in the ring - there is always room for all of them but a slot
+        // can look full for a moment while a taker is finishing with it.
+        while (!free.offer(it)) {
+            Thread.yield();
+        }
         // Signal all threads blocked on put.
         signalFree();
     }
@@ -180,13 +189,13 @@ public class Container<T> implements Iterable<T> {
      * Wait for a time when it is likely that a free slot is available.
      */
     private void waitForFree() throws InterruptedException {
-        // Still full?
-        while (isFull()) {
-            // Park me 'till something is removed.
-            block.await();
-        }
+        // Wait 'till something is removed.
+        wait.await(block, notFull);
     }
 
+    // Ready when there's room.
+    private final BooleanSupplier notFull = () -> !isFull();
+
     /**
      * A slot has been freed up. If anyone is waiting, let the next one know.
      */
@@ -194,18 +203,9 @@ public class Container<T> implements Iterable<T> {
         block.release();
     }
 
-    // Counts how many there are currently in the container.
+    // How many there are currently in the container.
     public int size() {
-        int found = 0;
-        Node<T> it = head.get();
-        // Do a raw count.
-        for (int i = 0; i < capacity; i++) {
-            if (!it.free.get()) {
-                found += 1;
-            }
-            it = it.next;
-        }
-        return found;
+        return capacity - free.size();
     }
 
     // Are we empty.
@@ -228,14 +228,128 @@ public class Container<T> implements Iterable<T> {
      * container.
      */
     public void clear() {
-        Node<T> it = head.get();
-        for (int i = 0; i < capacity; i++) {
+        free.clear();
+        for (Node<T> it : nodes) {
             // Trash the element
             it.element = null;
             // Mark it free.
             it.free.set(true);
-            it = it.next;
+            free.offer(it);
+        }
+    }
+
+    // An AtomicLong alone on its cache line so the two ends don't fight.
+    @SuppressWarnings({"serial", "unused"})
+    static class PaddedAtomicLong extends AtomicLong {
+        // Padding.
+        long p1, p2, p3, p4, p5, p6, p7 = 7L;
+
+        PaddedAtomicLong(long initial) {
+            super(initial);
+        }
+
+        // Stops the padding being optimised away.
+        long sum() {
+            return p1 + p2 + p3 + p4 + p5 + p6 + p7;
         }
+
+    }
+
+    /**
+     * Bounded lock-free MPMC ring of nodes.
+     * <p>
+     * Slot i is ready to be filled for position p when its sequence is p and
+     * ready to be emptied when it is p + 1. Emptying it sets it to
+     * p + length ready for the next lap.
+     */
+    static class FreeRing<T> {
+        // Sequences are this many longs apart - 64 bytes - to keep slots off each other's cache lines.
+        private static final int SPREAD = 8;
+        // Length - 1, the length is a power of 2.
+        private final int mask;
+        // The sequence of each slot.
+        private final AtomicLongArray sequence;
+        // The slots - published by the sequences.
+        private final Node<T>[] slots;
+        // Where the next goes in.
+        private final PaddedAtomicLong enqueue = new PaddedAtomicLong(0);
+        // Where the next comes out.
+        private final PaddedAtomicLong dequeue = new PaddedAtomicLong(0);
+
+        FreeRing(int capacity) {
+            int length = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+            mask = length - 1;
+            sequence = new AtomicLongArray(length * SPREAD);
+            slots = new Node[length];
+            clear();
+        }
+
+        // Add one - false if full.
+        boolean offer(Node<T> node) {
+            long pos = enqueue.get();
+            for (; ; ) {
+                int i = (int) pos & mask;
+                long diff = sequence.get(i * SPREAD) - pos;
+                if (diff == 0) {
+                    // Ready to fill - claim it.
+                    if (enqueue.compareAndSet(pos, pos + 1)) {
+                        slots[i] = node;
+                        sequence.lazySet(i * SPREAD, pos + 1);
+                        return true;
+                    }
+                    pos = enqueue.get();
+                } else if (diff < 0) {
+                    // A lap behind - full.
+                    return false;
+                } else {
+                    // Someone beat us to it.
+                    pos = enqueue.get();
+                }
+            }
+        }
+
+        // Take one - null if empty.
+        Node<T> poll() {
+            long pos = dequeue.get();
+            for (; ; ) {
+                int i = (int) pos & mask;
+                long diff = sequence.get(i * SPREAD) - (pos + 1);
+                if (diff == 0) {
+                    // Filled - claim it.
+                    if (dequeue.compareAndSet(pos, pos + 1)) {
+                        Node<T> node = slots[i];
+                        slots[i] = null;
+                        sequence.lazySet(i * SPREAD, pos + mask + 1);
+                        return node;
+                    }
+                    pos = dequeue.get();
+                } else if (diff < 0) {
+                    // Not filled yet - empty.
+                    return null;
+                } else {
+                    pos = dequeue.get();
+                }
+            }
+        }
+
+        // How many in it - may be momentarily out under contention.
+        int size() {
+            // Read dequeue first so it can't pass enqueue.
+            long out = dequeue.get();
+            long in = enqueue.get();
+            return (int) Math.max(0, Math.min(in - out, mask + 1));
+        }
+
+        // Empty it ... NOT thread safe.
+        final void clear() {
+            for (int i = 0; i <= mask; i++) {
+                slots[i] = null;
+                sequence.set(i * SPREAD, i);
+            }
+            enqueue.set(0);
+            dequeue.set(0);
+        }
+
     }
 
     // The Node class. It is static so needs the <T> repeated.
@@ -243,15 +357,7 @@ public class Container<T> implements Iterable<T> {
         // The element in the node.
         private T element;
         // Are we free?
-        private AtomicBoolean free = new AtomicBoolean(true);
-        /*
-         * The next reference in whatever list I am in.
-         *
-         * Does not need to be volatile as it is only set in the constructor of a Container
-         * and so will only ever be accessed by one thread.
-         *
-         */
-        private Node<T> next;
+        private final AtomicBoolean free = new AtomicBoolean(true);
 
         // Construct a node of the list
         private Node() {
@@ -318,18 +424,15 @@ public class Container<T> implements Iterable<T> {
      *
      */
     private static class UsedNodesIterator<T> implements Iterator<T> {
+        // The nodes.
+        final Node<T>[] nodes;
         // Where next to look for the next used node.
-        Node<T> it;
-        // The capacity at creation time. Counts down to zero as we walk.
-        int stop = 0;
+        int i = 0;
         // The next entry to return.
         T next = null;
 
         public UsedNodesIterator(Container<T> c) {
-            // Remember that the head node can move so Snapshot the head node at this time.
-            it = c.head.get();
-            // Remember where to stop too.
-            stop = c.capacity;
+            nodes = c.nodes;
         }
 
         // Returns true of there is another element available.
@@ -337,15 +440,14 @@ public class Container<T> implements Iterable<T> {
         public boolean hasNext() {
             // Made into a `while` loop to fix issue reported by @Nim
             // In a while loop because we may find an entry with 'null' in it and we don't want that.
-            while (next == null && stop > 0) {
+            while (next == null && i < nodes.length) {
                 // Scan to the next non-free node.
-                while (stop > 0 && it.free.get() == true) {
-                    it = it.next;
-                    // Step down 1.
-                    stop -= 1;
+                while (i < nodes.length && nodes[i].free.get() == true) {
+                    // Step on 1.
+                    i += 1;
                 }
-                if (stop > 0) {
-                    next = it.element;
+                if (i < nodes.length) {
+                    next = nodes[i].element;
                 }
             }
             return next != null;
@@ -360,8 +462,7 @@ public class Container<T> implements Iterable<T> {
                 n = next;
                 next = null;
                 // Step forward.
-                it = it.next;
-                stop -= 1;
+                i += 1;
             } else {
                 // Not there!!
                 throw new NoSuchElementException();
@@ -384,11 +485,9 @@ public class Container<T> implements Iterable<T> {
         int usedCount = 0;
         int freeCount = 0;
         // I will iterate the list myself as I want to count free nodes too.
-        Node<T> it = head.get();
-        int count = 0;
         s.append("[");
         // Scan to the end.
-        while (count < capacity) {
+        for (Node<T> it : nodes) {
             // Is it in-use?
             if (it.free.get() == false) {
                 // Grab its element.
@@ -408,9 +507,6 @@ public class Container<T> implements Iterable<T> {
                 // Free one.
                 freeCount += 1;
             }
-            // Next
-            it = it.next;
-            count += 1;
         }
         // Decorate with counts "]used+free".
         s.append("]").append(usedCount).append("+").append(freeCount);
@@ -16,6 +16,7 @@
 package com.oldcurmudgeon.toolbox.containers;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicMarkableReference;
@@ -23,29 +24,76 @@ import java.util.concurrent.atomic.AtomicMarkableReference;
 /**
  * Allows a producer to append to the list while the consumer can pull the
  * whole current list for processing.
+ * <p>
+ * Hand the lists you have finished with back - release or get(recycled) -
+ * and they are cleared and used again instead of making new ones. Cleared
+ * ArrayLists keep their arrays so once they have grown big enough a steady
+ * flow makes no garbage at all.
  *
  * @author OldCurmudgeon
  */
 public class DoubleBufferedList<T> {
+    // How many spare lists to keep by default.
+    public static final int POOL_SIZE = 16;
+    // Spare lists - cleared and ready to use.
+    private final ArrayBlockingQueue<List<T>> pool;
     // Atomic reference so I can atomically swap it through.
     // Mark = true means I am adding to it so momentarily unavailable for iteration.
     private AtomicMarkableReference<List<T>> list = new AtomicMarkableReference<>(newList(), false);
 
+    public DoubleBufferedList() {
+        this(POOL_SIZE);
+    }
+
+    // Keeping up to poolSize spare lists.
+    public DoubleBufferedList(int poolSize) {
+        pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
     // Factory method to create a new list - may be best to abstract this.
     protected List<T> newList() {
         return new ArrayList<>();
     }
 
+    // An empty list - a spare if there is one.
+    protected List<T> fresh() {
+        List<T> spare = pool.poll();
+        return spare != null ? spare : newList();
+    }
+
+    /**
+     * Finished with a list from get - it will be used again.
+     * <p>
+     * Don't touch it after.
+     *
+     * @param used List
+     */
+    public void release(List<T> used) {
+        // The empty one from get is not ours.
+        if (used != null && used != Collections.<T>emptyList()) {
+            used.clear();
+            // Dropped if the pool is full.
+            pool.offer(used);
+        }
+    }
+
+    // Give back the last list and get the next.
+    public List<T> get(List<T> recycled) {
+        release(recycled);
+        return get();
+    }
+
     // Get and replace with empty the current list - can return null - does not mean failed.
     public List<T> get() {
         // Atomically grab and replace the list with an empty one.
-        List<T> empty = newList();
+        List<T> empty = fresh();
         List<T> it;
         // Replace an unmarked list with an empty one.
         if (!list.compareAndSet(it = list.getReference(), empty, false, false)) {
             // Failed to replace!
             // It is probably marked as being appended to but may have been replaced by another thread.
             // Return empty and come back again soon.
+            release(empty);
             return Collections.<T>emptyList();
         }
         // Successfull replaced an unmarked list with an empty list!
@@ -63,7 +111,7 @@ public class DoubleBufferedList<T> {
     }
 
     // Release the list.
-    private void release(List<T> it) {
+    private void unmark(List<T> it) {
         // Unmark it - should this be a compareAndSet(it, it, true, false)?
         if (!list.attemptMark(it, false)) {
             // Should never fail because once marked it will not be replaced.
@@ -79,7 +127,7 @@ public class DoubleBufferedList<T> {
             it.add(entry);
         } finally {
             // Always release after a grab.
-            release(it);
+            unmark(it);
         }
     }
 
@@ -91,7 +139,7 @@ public class DoubleBufferedList<T> {
             it.addAll(entries);
         } finally {
             // Always release after a grab.
-            release(it);
+            unmark(it);
         }
     }
 
@@ -105,212 +153,215 @@ public class DoubleBufferedList<T> {
     public static void main(String args[]) {
         Tester.test();
     }
-}
-
-class Tester {
-    // TESTING.
-    // How many testers to run.
-    static final int N = 10;
-    // The next one we're waiting for.
-    static final AtomicInteger[] seen = new AtomicInteger[N];
-    // The ones that arrived out of order.
-    static final ConcurrentSkipListSet<Widget>[] queued = Generics.<ConcurrentSkipListSet<Widget>>newArray(N);
-
-    static class Generics {
-        // A new Generics method for when we switch to Java 7.
-        @SafeVarargs
-        static <E> E[] newArray(int length, E... array) {
-            return Arrays.copyOf(array, length);
+
+    static class Tester {
+        // TESTING.
+        // How many testers to run.
+        static final int N = 10;
+        // The next one we're waiting for.
+        static final AtomicInteger[] seen = new AtomicInteger[N];
+        // The ones that arrived out of order.
+        static final ConcurrentSkipListSet<Widget>[] queued = Generics.<ConcurrentSkipListSet<Widget>>newArray(N);
+
+        static class Generics {
+            // A new Generics method for when we switch to Java 7.
+            @SafeVarargs
+            static <E> E[] newArray(int length, E... array) {
+                return Arrays.copyOf(array, length);
+            }
         }
-    }
 
-    static {
-        // Populate the arrays.
-        for (int i = 0; i < N; i++) {
-            seen[i] = new AtomicInteger();
-            queued[i] = new ConcurrentSkipListSet<>();
+        static {
+            // Populate the arrays.
+            for (int i = 0; i < N; i++) {
+                seen[i] = new AtomicInteger();
+                queued[i] = new ConcurrentSkipListSet<>();
+            }
         }
-    }
 
-    // Thing that is produced and consumed.
-    private static class Widget implements Comparable<Widget> {
-        // Who produced it.
-        public final int producer;
-        // Its sequence number.
-        public final int sequence;
+        // Thing that is produced and consumed.
+        static class Widget implements Comparable<Widget> {
+            // Who produced it.
+            public final int producer;
+            // Its sequence number.
+            public final int sequence;
 
-        public Widget(int producer, int sequence) {
-            this.producer = producer;
-            this.sequence = sequence;
-        }
+            public Widget(int producer, int sequence) {
+                this.producer = producer;
+                this.sequence = sequence;
+            }
 
-        @Override
-        public String toString() {
-            return producer + "\t" + sequence;
-        }
+            @Override
+            public String toString() {
+                return producer + "\t" + sequence;
+            }
 
-        @Override
-        public int compareTo(Widget o) {
-            // Sort on producer
-            int diff = Integer.compare(producer, o.producer);
-            if (diff == 0) {
-                // And then sequence
-                diff = Integer.compare(sequence, o.sequence);
+            @Override
+            public int compareTo(Widget o) {
+                // Sort on producer
+                int diff = Integer.compare(producer, o.producer);
+                if (diff == 0) {
+                    // And then sequence
+                    diff = Integer.compare(sequence, o.sequence);
+                }
+                return diff;
             }
-            return diff;
         }
-    }
 
-    // Produces Widgets and feeds them to the supplied DoubleBufferedList.
-    private static class TestProducer implements Runnable {
-        // The list to feed.
-        final DoubleBufferedList<Widget> list;
-        // My ID
-        final int id;
-        // The sequence we're at
-        int sequence = 0;
-        // Set this at true to stop me.
-        public volatile boolean stop = false;
-
-        public TestProducer(DoubleBufferedList<Widget> list, int id) {
-            this.list = list;
-            this.id = id;
-        }
+        // Produces Widgets and feeds them to the supplied DoubleBufferedList.
+        private static class TestProducer implements Runnable {
+            // The list to feed.
+            final DoubleBufferedList<Widget> list;
+            // My ID
+            final int id;
+            // The sequence we're at
+            int sequence = 0;
+            // Set this at true to stop me.
+            public volatile boolean stop = false;
 
-        @Override
-        public void run() {
-            // Just pump the list.
-            while (!stop) {
-                list.add(new Widget(id, sequence++));
+            public TestProducer(DoubleBufferedList<Widget> list, int id) {
+                this.list = list;
+                this.id = id;
             }
-        }
-    }
 
-    // Consumes Widgets from the suplied DoubleBufferedList
-    private static class TestConsumer implements Runnable {
-        // The list to bleed.
-        final DoubleBufferedList<Widget> list;
-        // My ID
-        final int id;
-        // Set this at true to stop me.
-        public volatile boolean stop = false;
-
-        public TestConsumer(DoubleBufferedList<Widget> list, int id) {
-            this.list = list;
-            this.id = id;
+            @Override
+            public void run() {
+                // Just pump the list.
+                while (!stop) {
+                    list.add(new Widget(id, sequence++));
+                }
+            }
         }
 
-        @Override
-        public void run() {
-            // The list I am working on.
-            List<Widget> l = list.get();
-            // Stop when stop == true && list is empty
-            while (!(stop && l.isEmpty())) {
-                // Record all items in list as arrived.
-                arrived(l);
-                // Grab another list.
-                l = list.get();
+        // Consumes Widgets from the suplied DoubleBufferedList
+        private static class TestConsumer implements Runnable {
+            // The list to bleed.
+            final DoubleBufferedList<Widget> list;
+            // My ID
+            final int id;
+            // Set this at true to stop me.
+            public volatile boolean stop = false;
+
+            public TestConsumer(DoubleBufferedList<Widget> list, int id) {
+                this.list = list;
+                this.id = id;
             }
-        }
 
-        private void arrived(List<Widget> l) {
-            for (Widget w : l) {
-                // Mark each one as arrived.
-                arrived(w);
+            @Override
+            public void run() {
+                // The list I am working on.
+                List<Widget> l = list.get();
+                // Stop when stop == true && list is empty
+                while (!(stop && l.isEmpty())) {
+                    // Record all items in list as arrived.
+                    arrived(l);
+                    // Hand it back and grab another list.
+                    l = list.get(l);
+                }
+            }
+
+            private void arrived(List<Widget> l) {
+                for (Widget w : l) {
+                    // Mark each one as arrived.
+                    arrived(w);
+                }
             }
-        }
 
-        // A Widget has arrived.
-        private static void arrived(Widget w) {
-            // Which one is it?
-            AtomicInteger n = seen[w.producer];
-            // Don't allow multi-access to the same producer data or we'll end up confused.
-            synchronized (n) {
-                // Is it the next to be seen?
-                if (n.compareAndSet(w.sequence, w.sequence + 1)) {
-                    // It was the one we were waiting for! See if any of the ones in the queue can now be consumed.
-                    for (Iterator<Widget> i = queued[w.producer].iterator(); i.hasNext(); ) {
-                        Widget it = i.next();
-                        // Is it in sequence?
-                        if (n.compareAndSet(it.sequence, it.sequence + 1)) {
-                            // Done with that one too now!
-                            i.remove();
-                        } else {
-                            // Found a gap! Stop now.
-                            break;
+            // A Widget has arrived.
+            private static void arrived(Widget w) {
+                // Which one is it?
+                AtomicInteger n = seen[w.producer];
+                // Don't allow multi-access to the same producer data or we'll end up confused.
+                synchronized (n) {
+                    // Is it the next to be seen?
+                    if (n.compareAndSet(w.sequence, w.sequence + 1)) {
+                        // It was the one we were waiting for! See if any of the ones in the queue can now be consumed.
+                        for (Iterator<Widget> i = queued[w.producer].iterator(); i.hasNext(); ) {
+                            Widget it = i.next();
+                            // Is it in sequence?
+                            if (n.compareAndSet(it.sequence, it.sequence + 1)) {
+                                // Done with that one too now!
+                                i.remove();
+                            } else {
+                                // Found a gap! Stop now.
+                                break;
+                            }
                         }
+                    } else {
+                        // Out of sequence - Queue it.
+                        queued[w.producer].add(w);
                     }
-                } else {
-                    // Out of sequence - Queue it.
-                    queued[w.producer].add(w);
                 }
             }
         }
-    }
 
-    // Main tester
-    public static void test() {
-        try {
-            System.out.println("DoubleBufferedList:Test");
-            // Create my test buffer.
-            DoubleBufferedList<Widget> list = new DoubleBufferedList<>();
-            // All running threads - Producers then Consumers.
-            List<Thread> running = new LinkedList<>();
-            // Start some producer tests.
-            List<TestProducer> producers = new ArrayList<>();
-            for (int i = 0; i < N; i++) {
-                TestProducer producer = new TestProducer(list, i);
-                Thread t = new Thread(producer);
-                t.setName("Producer " + i);
-                t.start();
-                producers.add(producer);
-                running.add(t);
-            }
+        // Main tester
+        public static void test() {
+            test(new DoubleBufferedList<>());
+        }
 
-            // Start the same number of consumers (could do less or more if we wanted to).
-            List<TestConsumer> consumers = new ArrayList<>();
-            for (int i = 0; i < N; i++) {
-                TestConsumer consumer = new TestConsumer(list, i);
-                Thread t = new Thread(consumer);
-                t.setName("Consumer " + i);
-                t.start();
-                consumers.add(consumer);
-                running.add(t);
-            }
-            // Wait for a while.
-            Thread.sleep(5000);
-            // Close down all.
-            for (TestProducer p : producers) {
-                p.stop = true;
-            }
-            for (TestConsumer c : consumers) {
-                c.stop = true;
-            }
-            // Wait for all to stop.
-            for (Thread t : running) {
-                System.out.println("Joining " + t.getName());
-                t.join();
-            }
-            // What results did we get?
-            int totalMessages = 0;
-            for (int i = 0; i < N; i++) {
-                // How far did the producer get?
-                int gotTo = producers.get(i).sequence;
-                // The consumer's state
-                int seenTo = seen[i].get();
-                totalMessages += seenTo;
-                Set<Widget> queue = queued[i];
-                if (seenTo == gotTo && queue.isEmpty()) {
-                    System.out.println("Producer " + i + " ok.");
-                } else {
-                    // Different set consumed as produced!
-                    System.out.println("Producer " + i + " Failed: gotTo=" + gotTo + " seenTo=" + seenTo + " queued=" + queue);
+        // Test this one.
+        static void test(DoubleBufferedList<Widget> list) {
+            try {
+                System.out.println(list.getClass().getSimpleName() + ":Test");
+                // All running threads - Producers then Consumers.
+                List<Thread> running = new LinkedList<>();
+                // Start some producer tests.
+                List<TestProducer> producers = new ArrayList<>();
+                for (int i = 0; i < N; i++) {
+                    TestProducer producer = new TestProducer(list, i);
+                    Thread t = new Thread(producer);
+                    t.setName("Producer " + i);
+                    t.start();
+                    producers.add(producer);
+                    running.add(t);
                 }
-            }
-            System.out.println("Total messages " + totalMessages);
 
-        } catch (InterruptedException ex) {
-            ex.printStackTrace();
+                // Start the same number of consumers (could do less or more if we wanted to).
+                List<TestConsumer> consumers = new ArrayList<>();
+                for (int i = 0; i < N; i++) {
+                    TestConsumer consumer = new TestConsumer(list, i);
+                    Thread t = new Thread(consumer);
+                    t.setName("Consumer " + i);
+                    t.start();
+                    consumers.add(consumer);
+                    running.add(t);
+                }
+                // Wait for a while.
+                Thread.sleep(5000);
+                // Close down all.
+                for (TestProducer p : producers) {
+                    p.stop = true;
+                }
+                for (TestConsumer c : consumers) {
+                    c.stop = true;
+                }
+                // Wait for all to stop.
+                for (Thread t : running) {
+                    System.out.println("Joining " + t.getName());
+                    t.join();
+                }
+                // What results did we get?
+                int totalMessages = 0;
+                for (int i = 0; i < N; i++) {
+                    // How far did the producer get?
+                    int gotTo = producers.get(i).sequence;
+                    // The consumer's state
+                    int seenTo = seen[i].get();
+                    totalMessages += seenTo;
+                    Set<Widget> queue = queued[i];
+                    if (seenTo == gotTo && queue.isEmpty()) {
+                        System.out.println("Producer " + i + " ok.");
+                    } else {
+                        // Different set consumed as produced!
+                        System.out.println("Producer " + i + " Failed: gotTo=" + gotTo + " seenTo=" + seenTo + " queued=" + queue);
+                    }
+                }
+                System.out.println("Total messages " + totalMessages);
+
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.containers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A DoubleBufferedList for many producers.
+ * <p>
+ * Each producer thread appends to its own segment so producers never wait
+ * for each other. It takes its segment's list out while adding and puts it
+ * back after - a getAndSet and a set, never a spin.
+ * <p>
+ * get swaps a fresh list into every segment that is not being added to at
+ * that moment and hands back all their entries as one list. A segment being
+ * added to is picked up next time. Entries from one producer stay in order.
+ * <p>
+ * Segments of threads that have died are dropped once they are empty.
+ * <p>
+ * Lists handed back through get(recycled) or release are used as the fresh
+ * ones.
+ *
+ * @author OldCurmudgeon
+ */
+public class PerThreadDoubleBufferedList<T> extends DoubleBufferedList<T> {
+    // All the segments.
+    private final List<Segment<T>> segments = new CopyOnWriteArrayList<>();
+    // Mine.
+    private final ThreadLocal<Segment<T>> mine = new ThreadLocal<Segment<T>>() {
+        @Override
+        protected Segment<T> initialValue() {
+            Segment<T> s = new Segment<>(fresh());
+            segments.add(s);
+            return s;
+        }
+
+    };
+
+    public PerThreadDoubleBufferedList() {
+        super();
+    }
+
+    // Keeping up to poolSize spare lists.
+    public PerThreadDoubleBufferedList(int poolSize) {
+        super(poolSize);
+    }
+
+    // One producer's list.
+    private static class Segment<T> {
+        // Who adds to it.
+        final Thread owner = Thread.currentThread();
+        // Null while the owner is adding.
+        final AtomicReference<List<T>> list;
+
+        Segment(List<T> list) {
+            this.list = new AtomicReference<>(list);
+        }
+
+    }
+
+    // Get and replace with empty all the current lists.
+    @Override
+    public List<T> get() {
+        List<T> got = null;
+        // Fresh list for the next segment - reusing those we've merged from.
+        List<T> spare = null;
+        for (Segment<T> s : segments) {
+            List<T> it;
+            if (!s.owner.isAlive()) {
+                // It will never add again - take it all and drop it.
+                it = s.list.getAndSet(null);
+                segments.remove(s);
+            } else {
+                it = s.list.get();
+                // Null means being added to - next time.
+                if (it == null || it.isEmpty()) {
+                    continue;
+                }
+                if (spare == null) {
+                    spare = fresh();
+                }
+                if (!s.list.compareAndSet(it, spare)) {
+                    // Owner took it in the meantime - next time.
+                    continue;
+                }
+                spare = null;
+            }
+            if (it != null && !it.isEmpty()) {
+                if (got == null) {
+                    got = it;
+                } else {
+                    got.addAll(it);
+                    // Emptied - use it for the next one.
+                    if (spare == null) {
+                        it.clear();
+                        spare = it;
+                    } else {
+                        release(it);
+                    }
+                }
+            }
+        }
+        // Didn't need it.
+        release(spare);
+        return got != null ? got : Collections.<T>emptyList();
+    }
+
+    // Take my list out to add to it.
+    private List<T> grab(Segment<T> s) {
+        // Only the owner ever takes it out so it can't be null.
+        return s.list.getAndSet(null);
+    }
+
+    // Add an entry to the list.
+    @Override
+    public void add(T entry) {
+        Segment<T> s = mine.get();
+        List<T> it = grab(s);
+        try {
+            it.add(entry);
+        } finally {
+            // Put it back.
+            s.list.set(it);
+        }
+    }
+
+    // Add many entries to the list.
+    @Override
+    public void add(List<T> entries) {
+        Segment<T> s = mine.get();
+        List<T> it = grab(s);
+        try {
+            it.addAll(entries);
+        } finally {
+            // Put it back.
+            s.list.set(it);
+        }
+    }
+
+    public static void main(String args[]) {
+        Tester.test(new PerThreadDoubleBufferedList<>());
+    }
+}
@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Hold statistics.
@@ -108,6 +109,86 @@ public class Stats {
 
     }
 
+    // A statistic holding a histogram - e.g. of latencies.
+    public static class HistogramStat extends Stat<AtomicLongArray> {
+        // Bucket i holds values from 2^(i-1) up to 2^i - bucket 0 holds 0.
+        private static final int BUCKETS = 64;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public HistogramStat(String name) {
+            super(name, new AtomicLongArray(BUCKETS));
+        }
+
+        public void record(long v) {
+            value.incrementAndGet(v <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            for (long m = max.get(); v > m && !max.compareAndSet(m, v); m = max.get()) {
+                // Someone else changed it - try again.
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMean() {
+            long n = count.get();
+            return n > 0 ? sum.get() / n : 0;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * The value below which this fraction of the values fall - to the
+         * next power of two.
+         *
+         * @param fraction double - e.g. 0.99
+         * @return long
+         */
+        public long percentile(double fraction) {
+            long n = count.get();
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += value.get(i);
+                if (seen > 0 && seen >= fraction * n) {
+                    // Never more than the biggest.
+                    return Math.min(i >= 63 ? Long.MAX_VALUE : 1L << i, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public void clr() {
+            for (int i = 0; i < BUCKETS; i++) {
+                value.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        public long total() {
+            return count.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + count.get() + "(mean=" + getMean() + ",p50=" + percentile(0.5)
+                    + ",p99=" + percentile(0.99) + ",max=" + max.get() + ")";
+        }
+
+    }
+
     // My stats.
     private final List<Stat> stats = new ArrayList<>();
 
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.containers;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a thread waits for something - e.g. a free slot in a Container.
+ * <p>
+ * From the most CPU and quickest to wake to the least and slowest:
+ * <p>
+ * BusySpin - never lets go of the core.
+ * <p>
+ * Yield - spins but lets others run.
+ * <p>
+ * SpinThenPark - spins a little, yields a little then parks until released.
+ * <p>
+ * Blocking - waits on a Condition, the way Blocked always has.
+ * <p>
+ * TimedPark - parks for a while and looks again. Costs the releaser nothing.
+ *
+ * @author OldCurmudgeon
+ */
+public enum WaitStrategy {
+    BusySpin {
+        @Override
+        public void await(Blocked blocked, BooleanSupplier ready) throws InterruptedException {
+            while (!ready.getAsBoolean()) {
+                onSpinWait();
+                checkInterrupt();
+            }
+        }
+
+    },
+    Yield {
+        @Override
+        public void await(Blocked blocked, BooleanSupplier ready) throws InterruptedException {
+            while (!ready.getAsBoolean()) {
+                Thread.yield();
+                checkInterrupt();
+            }
+        }
+
+    },
+    SpinThenPark {
+        @Override
+        public void await(Blocked blocked, BooleanSupplier ready) throws InterruptedException {
+            for (int i = 0; i < SPINS; i++) {
+                if (ready.getAsBoolean()) {
+                    return;
+                }
+                if (i < SPINS / 2) {
+                    onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                checkInterrupt();
+            }
+            // Capped in case a release goes to someone else who no longer needs it.
+            blocked.park(ready, MAX_PARK_NANOS);
+        }
+
+    },
+    Blocking {
+        @Override
+        public void await(Blocked blocked, BooleanSupplier ready) throws InterruptedException {
+            blocked.await(ready);
+        }
+
+    },
+    TimedPark {
+        @Override
+        public void await(Blocked blocked, BooleanSupplier ready) throws InterruptedException {
+            while (!ready.getAsBoolean()) {
+                LockSupport.parkNanos(blocked, PARK_NANOS);
+                checkInterrupt();
+            }
+        }
+
+    };
+
+    // How many times SpinThenPark looks before parking.
+    static final int SPINS = 200;
+    // Longest SpinThenPark parks before looking again.
+    static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // How long TimedPark parks each time.
+    static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Wait until ready.
+     *
+     * @param blocked Blocked - released by whoever makes it ready.
+     * @param ready   BooleanSupplier
+     * @throws InterruptedException
+     */
+    public abstract void await(Blocked blocked, BooleanSupplier ready) throws InterruptedException;
+
+    // Thread.onSpinWait if it is there - we build for 8.
+    private static final MethodHandle onSpinWait = findOnSpinWait();
+
+    private static MethodHandle findOnSpinWait() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    static void onSpinWait() {
+        if (onSpinWait != null) {
+            try {
+                onSpinWait.invokeExact();
+            } catch (Throwable t) {
+                // Just a hint.
+            }
+        }
+    }
+
+    static void checkInterrupt() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Compare them - producers taking turns at a Container with one slot.
+     * <p>
+     * Each holds the slot for a moment then gives it back. Shows how many
+     * turns they got through, how long a put took and how much CPU was burnt
+     * waiting.
+     * <p>
+     * args: producers (4) seconds (1)
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final long millis = args.length > 1 ? Long.parseLong(args[1]) * 1000 : 1000;
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        for (WaitStrategy w : values()) {
+            // Warm up then measure.
+            for (int pass = 0; pass < 2; pass++) {
+                final Container<Thread> c = new Container<>(1, w);
+                final AtomicBoolean running = new AtomicBoolean(true);
+                final long[] cpu = new long[producers];
+                final long[] turns = new long[producers];
+                final long[][] puts = new long[producers][];
+                List<Thread> threads = new ArrayList<>();
+                for (int p = 0; p < producers; p++) {
+                    final int me = p;
+                    Thread t = new Thread(() -> {
+                        long start = mx.getCurrentThreadCpuTime();
+                        Thread self = Thread.currentThread();
+                        // Sample of put times.
+                        long[] sample = new long[1 << 16];
+                        int n = 0;
+                        try {
+                            while (running.get()) {
+                                long put = System.nanoTime();
+                                Container.Node<Thread> node = c.put(self);
+                                sample[n++ & (sample.length - 1)] = System.nanoTime() - put;
+                                // Hold it a moment.
+                                for (int i = 0; i < 100; i++) {
+                                    onSpinWait();
+                                }
+                                c.remove(node, self);
+                            }
+                        } catch (InterruptedException ie) {
+                            // Done.
+                        }
+                        cpu[me] = mx.getCurrentThreadCpuTime() - start;
+                        turns[me] = n;
+                        puts[me] = Arrays.copyOf(sample, Math.min(n, sample.length));
+                    }, w + "-" + p);
+                    threads.add(t);
+                    t.start();
+                }
+                Thread.sleep(pass == 0 ? 200 : millis);
+                running.set(false);
+                for (Thread t : threads) {
+                    t.interrupt();
+                    t.join();
+                }
+                if (pass == 1) {
+                    long total = 0;
+                    long cpuTotal = 0;
+                    List<Long> all = new ArrayList<>();
+                    for (int p = 0; p < producers; p++) {
+                        total += turns[p];
+                        cpuTotal += cpu[p];
+                        for (long l : puts[p]) {
+                            all.add(l);
+                        }
+                    }
+                    all.sort(null);
+                    System.out.println(String.format("%-13s turns/s=%9d put p50=%7dns p99=%9dns cpu/turn=%6dns",
+                            w, total * 1000 / millis,
+                            all.isEmpty() ? 0 : all.get(all.size() / 2),
+                            all.isEmpty() ? 0 : all.get(all.size() * 99 / 100),
+                            total == 0 ? 0 : cpuTotal / total));
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package com.oldcurmudgeon.toolbox.io;
 
-import com.oldcurmudgeon.toolbox.containers.CloseableBlockingQueue;
+import com.oldcurmudgeon.toolbox.containers.CloseableQueue;
 import com.oldcurmudgeon.toolbox.twiddlers.ProcessTimer;
 import com.oldcurmudgeon.toolbox.twiddlers.RegexFilenameFilter;
 
@@ -108,7 +108,7 @@ public class FileList implements Iterable<File>, Iterator<File>, Closeable {
     // Max collector threads.
     private static final int MAX_THREADS = 50;
     // The queue. Marked closed to close the collector(s).
-    private final CloseableBlockingQueue<File> fileQueue = new CloseableBlockingQueue<>(QUEUE_LENGTH);
+    private final CloseableQueue<File> fileQueue = new CloseableQueue<>(QUEUE_LENGTH);
     // The next file name to deliver.
     private File next = null;
     // Thread pool for the collectors.
@@ -180,8 +180,8 @@ public class FileList implements Iterable<File>, Iterator<File>, Closeable {
     // Spin on the queue waiting for a new file or the listing to have closed.
     private File waitForNextOrClose() {
         File it = null;
-        // Wait for either closed or there's a file.
-        while (it == null && !fileQueue.isClosed()) {
+        // Wait for either ended or there's a file.
+        while (it == null && !fileQueue.isEnded()) {
             try {
                 // Poll but wait a really short time in case we are closed.
                 it = fileQueue.poll(100, TimeUnit.MILLISECONDS);
@@ -229,8 +229,8 @@ public class FileList implements Iterable<File>, Iterator<File>, Closeable {
         }
         // If no threads are left, we're done.
         if (runningThreads == 0) {
-            // Finished! Close everything down.
-            close();
+            // Finished! Close everything down - anything still queued is still delivered.
+            finish();
         }
     }
 
@@ -243,12 +243,19 @@ public class FileList implements Iterable<File>, Iterator<File>, Closeable {
     // Close down the whole system.
     @Override
     public void close() {
+        finish();
+        // They don't want any more.
+        fileQueue.clear();
+    }
+
+    // Stop the collectors and wait for them.
+    private void finish() {
         // Use the fileQueue state to indicate closed.
         if (!fileQueue.isClosed()) {
-            // Close the queue ... unblocking all collectors (I hope).
+            // Close the queue ... wakes all collectors blocked on put and stops them listing.
             fileQueue.close();
-            // Shut them down agressively as this may be called by user prematurely as well as by me.
-            threads.shutdownNow();
+            // No need to interrupt - they all watch the queue.
+            threads.shutdown();
             // Wait until all is done.
             boolean terminated = false;
             do {
@@ -362,7 +369,10 @@ public class FileList implements Iterable<File>, Iterator<File>, Closeable {
                 try {
                     // Block here if the queue is full.
                     //log.log("? Posting " + dir + File.separator + name);
-                    fileQueue.put(new File(dir, name));
+                    if (!fileQueue.put(new File(dir, name))) {
+                        // Closed.
+                        finished = true;
+                    }
                 } catch (InterruptedException ex) {
                     log.log("! Accept Interrupted! " + path);
                     // They want me to close.
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import com.oldcurmudgeon.toolbox.containers.Stats;
+import com.oldcurmudgeon.toolbox.containers.Stats.HistogramStat;
+import com.oldcurmudgeon.toolbox.containers.Stats.NumberStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of connections, each with its own reusable statement.
+ * <p>
+ * Idle connections are kept most-recently-used first so the hot ones stay
+ * warm and the cold ones drift to the tail where they are evicted once they
+ * have been idle for too long.
+ * <p>
+ * A connection that has been idle for a while is checked with a trivial
+ * query before it is handed out.
+ *
+ * @author OldCurmudgeon
+ */
+public class ConnectionPool implements ConnectionPoolMBean {
+    // A logger.
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /**
+     * Where new connections come from.
+     */
+    public interface Source {
+
+        public Connection open() throws SQLException;
+
+    }
+
+    // Where to get new connections.
+    private final Source source;
+    // The most connections we will ever have open.
+    private final int size;
+    // How long to wait for a connection before giving up.
+    private final long timeoutMillis;
+    // How long a connection can sit idle before it is closed.
+    private final long idleMillis;
+    // How long a connection can sit idle before it must be checked.
+    private final long validateMillis;
+    // How many prepared statements to keep per connection.
+    private final int statementCacheSize;
+    // One permit per connection - open or not.
+    private final Semaphore permits;
+    // Idle connections - most recently used at the head.
+    private final LinkedBlockingDeque<Pooled> idle = new LinkedBlockingDeque<>();
+    // Sweeps out the long-idle ones - null if they are never evicted.
+    private final Timer sweeper;
+    // Set on close.
+    private volatile boolean closed = false;
+
+    // Observable.
+    public final NumberStat acquires = new NumberStat("Acquires");
+    public final NumberStat waits = new NumberStat("Waits");
+    public final NumberStat waitMillis = new NumberStat("WaitMillis");
+    public final NumberStat timeouts = new NumberStat("Timeouts");
+    public final NumberStat inUse = new NumberStat("InUse");
+    public final NumberStat opened = new NumberStat("Opened");
+    public final NumberStat evicted = new NumberStat("Evicted");
+    public final NumberStat invalid = new NumberStat("Invalid");
+    public final HistogramStat waitMicros = new HistogramStat("WaitMicros");
+    public final Stats stats = new Stats(acquires, waits, waitMillis, timeouts, inUse, opened, evicted, invalid, waitMicros);
+
+    public ConnectionPool(Source source, int size, long timeoutMillis, long idleMillis, long validateMillis, int statementCacheSize) {
+        // Sanity checks.
+        if (size <= 0) {
+            throw new IllegalArgumentException("Pool size must be greater than zero.");
+        }
+        if (statementCacheSize < 0) {
+            throw new IllegalArgumentException("Statement cache size must not be negative.");
+        }
+        this.source = source;
+        this.size = size;
+        this.timeoutMillis = timeoutMillis;
+        this.idleMillis = idleMillis;
+        this.validateMillis = validateMillis;
+        this.statementCacheSize = statementCacheSize;
+        // Fair so nobody starves.
+        permits = new Semaphore(size, true);
+        if (idleMillis > 0) {
+            // Make the timer a daemon.
+            sweeper = new Timer("ConnectionPool sweeper", true);
+            sweeper.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+
+            }, idleMillis, idleMillis);
+        } else {
+            // Keep them for ever.
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Take a connection from the pool, opening a new one if necessary.
+     * <p>
+     * It is your responsibility to ALWAYS release it again.
+     *
+     * @return Pooled
+     * @throws SQLException        if a connection could not be opened.
+     * @throws SQLTimeoutException if none became available in time.
+     */
+    public Pooled acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool closed.");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire()) {
+                // Going to have to wait.
+                waits.inc();
+                if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    timeouts.inc();
+                    throw new SQLTimeoutException("No connection available after " + timeoutMillis + "ms " + stats);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection.", ex);
+        } finally {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            waitMillis.add(micros / 1000);
+            waitMicros.record(micros);
+        }
+        // Got a permit - must give it back if anything goes wrong.
+        try {
+            Pooled p = takeValid();
+            acquires.inc();
+            inUse.inc();
+            return p;
+        } catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Give a connection back to the pool.
+     *
+     * @param p Pooled
+     */
+    public void release(Pooled p) {
+        if (p.isClosed()) {
+            // Broken - don't hand it out again.
+            discard(p);
+            return;
+        }
+        inUse.add(-1);
+        p.lastUsed = System.currentTimeMillis();
+        // Nothing of it is lent out now.
+        p.prepared.returnedAll();
+        if (closed) {
+            p.close();
+        } else {
+            // Most recently used at the head.
+            idle.offerFirst(p);
+        }
+        permits.release();
+    }
+
+    /**
+     * Give a connection back to the pool after something on it failed.
+     * <p>
+     * It is checked first and discarded if it has gone bad.
+     *
+     * @param p      Pooled
+     * @param failed boolean
+     */
+    public void release(Pooled p, boolean failed) {
+        if (failed && !p.isValid()) {
+            discard(p);
+        } else {
+            release(p);
+        }
+    }
+
+    /**
+     * Give back a connection that is known to be broken.
+     *
+     * @param p Pooled
+     */
+    public void discard(Pooled p) {
+        inUse.add(-1);
+        invalid.inc();
+        p.close();
+        permits.release();
+    }
+
+    /**
+     * How much of the pool is in use - 0 to 1.
+     *
+     * @return double
+     */
+    public double utilization() {
+        return (double) inUse.getValue().get() / size;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public long getInUse() {
+        return inUse.total();
+    }
+
+    @Override
+    public double getUtilization() {
+        return utilization();
+    }
+
+    @Override
+    public long getAcquires() {
+        return acquires.total();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.total();
+    }
+
+    @Override
+    public long getWaitP99Micros() {
+        return waitMicros.percentile(0.99);
+    }
+
+    @Override
+    public String getStats() {
+        return stats.toString();
+    }
+
+    /**
+     * Close down the pool.
+     * <p>
+     * Connections currently lent out will be closed as they are released.
+     */
+    public void close() {
+        closed = true;
+        if (sweeper != null) {
+            sweeper.cancel();
+        }
+        for (Pooled p; (p = idle.pollFirst()) != null; ) {
+            p.close();
+        }
+    }
+
+    // Pick the best idle one or make a new one.
+    private Pooled takeValid() throws SQLException {
+        for (Pooled p; (p = idle.pollFirst()) != null; ) {
+            if (System.currentTimeMillis() - p.lastUsed < validateMillis || p.isValid()) {
+                return p;
+            }
+            // It's gone bad - bin it.
+            invalid.inc();
+            p.close();
+        }
+        return open();
+    }
+
+    private Pooled open() throws SQLException {
+        Connection c = source.open();
+        try {
+            Pooled p = new Pooled(c, checkQuery(c), statementCacheSize);
+            opened.inc();
+            return p;
+        } catch (SQLException ex) {
+            c.close();
+            throw ex;
+        }
+    }
+
+    // Close everything that has been idle too long. Oldest are at the tail.
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Pooled> i = idle.descendingIterator(); i.hasNext(); ) {
+            Pooled p = i.next();
+            if (now - p.lastUsed < idleMillis) {
+                // The rest are younger.
+                break;
+            }
+            // Only close it if nobody grabbed it in the meantime.
+            if (idle.removeLastOccurrence(p)) {
+                evicted.inc();
+                p.close();
+            }
+        }
+    }
+
+    /*
+     * A simple query to check that the connection is valid all the way to the DB.
+     *
+     * Same as ExtendedConnection.Type - see http://stackoverflow.com/q/14320231/823393 for discussion.
+     */
+    static String checkQuery(Connection c) {
+        try {
+            String name = c.getMetaData().getDatabaseProductName();
+            if (name.contains("Oracle")) {
+                return "SELECT 1 FROM DUAL";
+            }
+        } catch (SQLException ex) {
+            // Assume the default.
+        }
+        return "SELECT 1";
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool(" + size + "): " + stats;
+    }
+
+    /**
+     * A connection in the pool with its reusable statements.
+     * <p>
+     * Only ever used by one thread at a time so needs no locking.
+     */
+    public static class Pooled {
+        // The connection.
+        final Connection connection;
+        // The statement (reused throughout).
+        final Statement statement;
+        // Prepared statements by their sql - least recently used are closed.
+        private final StatementCache prepared;
+        // How to check it is still alive.
+        private final String checkQuery;
+        // When it was last released.
+        long lastUsed = System.currentTimeMillis();
+
+        Pooled(Connection connection, String checkQuery, int statementCacheSize) throws SQLException {
+            this.connection = connection;
+            this.checkQuery = checkQuery;
+            prepared = new StatementCache(statementCacheSize);
+            statement = connection.createStatement();
+            statement.setCursorName("Cursor");
+        }
+
+        /**
+         * Get the prepared statement for this sql, preparing it only the first
+         * time it is seen on this connection.
+         * <p>
+         * If the cached one is still lent out - e.g. its results are still
+         * being read - a new one is prepared just for now. Give it back with
+         * returned.
+         *
+         * @param sql String
+         * @return PreparedStatement
+         * @throws SQLException
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return prepared.lend(sql, connection);
+        }
+
+        /**
+         * Finished with a statement from prepare.
+         *
+         * @param s Statement
+         */
+        void returned(Statement s) {
+            prepared.returned(s);
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        public Statement getStatement() {
+            return statement;
+        }
+
+        boolean isClosed() {
+            try {
+                return connection.isClosed();
+            } catch (SQLException ex) {
+                return true;
+            }
+        }
+
+        boolean isValid() {
+            try (Statement s = connection.createStatement()) {
+                s.execute(checkQuery);
+            } catch (SQLException exception) {
+                // All errors result in false.
+                log.debug("Validity check failed.", exception);
+                return false;
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                prepared.clear();
+                statement.close();
+                connection.close();
+            } catch (SQLException ex) {
+                log.debug(ex.toString(), ex);
+            }
+        }
+
+    }
+
+    /**
+     * LRU of prepared statements, closing them as they fall out - but never
+     * while they are lent out.
+     */
+    @SuppressWarnings("serial")
+    private static class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+        // Biggest I can get - 0 means none are kept.
+        private final int capacity;
+        // Lent out and not yet returned.
+        private final Set<Statement> lent = new HashSet<>();
+        // Lent out but not in the cache - closed when returned.
+        private final Set<Statement> orphans = new HashSet<>();
+
+        StatementCache(int capacity) {
+            // Access order for LRU.
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        // The cached one if it is free, otherwise a new one.
+        PreparedStatement lend(String sql, Connection connection) throws SQLException {
+            PreparedStatement ps = get(sql);
+            if (ps == null || lent.contains(ps)) {
+                boolean cache = ps == null;
+                ps = connection.prepareStatement(sql);
+                lent.add(ps);
+                if (cache) {
+                    // Falls straight out again if capacity is 0.
+                    put(sql, ps);
+                } else {
+                    orphans.add(ps);
+                }
+            } else {
+                lent.add(ps);
+            }
+            return ps;
+        }
+
+        void returned(Statement s) {
+            if (lent.remove(s) && orphans.remove(s)) {
+                close(s);
+            }
+        }
+
+        // The connection is back in the pool - nothing is lent out.
+        void returnedAll() {
+            lent.clear();
+            for (Statement s : orphans) {
+                close(s);
+            }
+            orphans.clear();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > capacity) {
+                PreparedStatement ps = eldest.getValue();
+                if (lent.contains(ps)) {
+                    // Close it when it comes back.
+                    orphans.add(ps);
+                } else {
+                    close(ps);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            for (PreparedStatement ps : values()) {
+                close(ps);
+            }
+            super.clear();
+            returnedAll();
+        }
+
+        private static void close(Statement ps) {
+            try {
+                ps.close();
+            } catch (SQLException ex) {
+                log.debug(ex.toString(), ex);
+            }
+        }
+
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+/**
+ * What ConnectionPool shows over JMX.
+ *
+ * @author OldCurmudgeon
+ */
+public interface ConnectionPoolMBean {
+
+    public int getSize();
+
+    public long getInUse();
+
+    public double getUtilization();
+
+    public long getAcquires();
+
+    public long getTimeouts();
+
+    // How long getStatement waits for a connection.
+    public long getWaitP99Micros();
+
+    public String getStats();
+
+}
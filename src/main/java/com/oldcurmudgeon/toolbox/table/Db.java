@@ -16,11 +16,20 @@
 package com.oldcurmudgeon.toolbox.table;
 
 import com.oldcurmudgeon.toolbox.containers.Params;
+import com.oldcurmudgeon.toolbox.containers.Stats;
+import com.oldcurmudgeon.toolbox.containers.Stats.NumberStat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.sql.*;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -43,13 +52,19 @@ public class Db {
     Params params = Params.getParams();
     // I'm the only one. (Singleton).
     private static Db me = null;
+    // Unless there are named ones too - one per shard.
+    private static final Map<String, Db> named = new ConcurrentHashMap<>();
+    // My name - null for the singleton.
+    private final String name;
 
-    // The connection.
-    private Connection connection = null;
-    // The statement (reused throughout).
-    //private boolean statementInUse = false;
-    private final Semaphore statementInUse = new Semaphore(1);
-    private Statement statement = null;
+    // The connections.
+    private ConnectionPool pool = null;
+    // Statements currently lent out and the pooled connection they belong to.
+    private final Map<Statement, ConnectionPool.Pooled> lent = new ConcurrentHashMap<>();
+    // Connection bound to this thread while a transaction is in progress.
+    private final ThreadLocal<ConnectionPool.Pooled> transaction = new ThreadLocal<>();
+    // Runs the async operations - made when first needed.
+    private ExecutorService executor = null;
     // My tables.
     //public DeviceTable deviceTable = new DeviceTable(this);
 
@@ -69,8 +84,17 @@ public class Db {
     }
 
     public DbType type = null;
+    // How to talk to it.
+    public Dialect dialect = Dialects.Sql2008;
+    // Does the driver support JDBC batches.
+    public boolean batchUpdates = false;
 
     private Db() {
+        this(null);
+    }
+
+    private Db(String name) {
+        this.name = name;
     }
 
     public static Db getDb() throws SQLException, ClassNotFoundException {
@@ -83,14 +107,60 @@ public class Db {
         return me;
     }
 
+    /**
+     * A Db by name - for when there are several databases such as shards.
+     * <p>
+     * Its params are those of the singleton, each overridden by the same
+     * param with .name on the end - e.g. DbURL.east.
+     *
+     * @param name String
+     * @return Db
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     */
+    public static Db getDb(String name) throws SQLException, ClassNotFoundException {
+        Db db = named.get(name);
+        if (db == null) {
+            synchronized (named) {
+                db = named.get(name);
+                if (db == null) {
+                    db = new Db(name);
+                    db.init();
+                    named.put(name, db);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * My name.
+     *
+     * @return String - null for the singleton.
+     */
+    public String getName() {
+        return name;
+    }
+
+    // My version of the param.
+    private String param(String param, String def) {
+        String value = params.get(param, def);
+        return name != null ? params.get(param + "." + name, value) : value;
+    }
+
     protected void init() throws SQLException, ClassNotFoundException {
         // Connect me to the database.
-        connection = openConnection();
+        pool = openPool();
+        register(pool);
         // What type of connection?
-        type = getDbType(connection);
-        // Build my statement.
-        statement = connection.createStatement();
-        statement.setCursorName("Cursor");
+        ConnectionPool.Pooled p = pool.acquire();
+        try {
+            type = getDbType(p.connection);
+            batchUpdates = p.connection.getMetaData().supportsBatchUpdates();
+            dialect = getDialect(p.connection);
+        } finally {
+            pool.release(p);
+        }
         // Check everything is there.
         //devicePedTable.ensureTableExists();
     }
@@ -108,35 +178,150 @@ public class Db {
     }
 
 
+    // DbDialect param if set or work it out.
+    private Dialect getDialect(Connection connection) throws SQLException, ClassNotFoundException {
+        String dialect = param("DbDialect", null);
+        if (dialect == null) {
+            return Dialects.of(connection.getMetaData());
+        }
+        try {
+            return Dialects.forName(dialect);
+        } catch (ReflectiveOperationException | ClassCastException ex) {
+            throw new ClassNotFoundException("Unusable DbDialect " + dialect, ex);
+        }
+    }
+
     public void close() throws SQLException {
-        if (statement != null) {
-            if (statementInUse.availablePermits() != 1) {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+        if (pool != null) {
+            if (!lent.isEmpty()) {
                 log.warn("You didn't release the statement!!");
             }
-            statement.close();
-            statement = null;
+            pool.close();
+            unregister();
+            pool = null;
         }
-        if (connection != null) {
-            connection.close();
-            connection = null;
+        if (name != null) {
+            named.remove(name, this);
+        } else if (me == this) {
+            me = null;
         }
         log.trace("Db connection closed.");
     }
 
-    private Connection openConnection() throws ClassNotFoundException, SQLException {
+    private ConnectionPool openPool() throws ClassNotFoundException {
         // Grab all my details.
-        String driver = params.get("DbDriver", "com.microsoft.sqlserver.jdbc.SQLServerDriver");
-        String url = params.get("DbURL", "jdbc:sqlserver://localhost:1433;SelectMethod=cursor;DatabaseName=PEDS");
-        String user = params.get("DbUser", "sa");
-        String password = params.get("DbPassword", "instore");
+        String driver = param("DbDriver", "com.microsoft.sqlserver.jdbc.SQLServerDriver");
+        final String url = param("DbURL", "jdbc:sqlserver://localhost:1433;SelectMethod=cursor;DatabaseName=PEDS");
+        final String user = param("DbUser", "sa");
+        final String password = param("DbPassword", "instore");
+        // Pool sizing.
+        int size = Integer.parseInt(param("DbPoolSize", "8"));
+        long timeout = Long.parseLong(param("DbPoolTimeout", "30000"));
+        long idle = Long.parseLong(param("DbPoolIdle", "300000"));
+        long validate = Long.parseLong(param("DbPoolValidate", "10000"));
+        int statements = Integer.parseInt(param("DbStatementCache", "64"));
         // Connect to the database.
         log.trace("Db Select driver:" + driver);
-        //Class c = Class.forName(driver);
-        log.trace("Db Connect:" + url);
         Class.forName(driver);
-        Connection c = DriverManager.getConnection(url, user, password);
-        log.trace("Db Connected: " + c.getMetaData().getDatabaseProductName());
-        return c;
+        return new ConnectionPool(() -> {
+            log.trace("Db Connect:" + url);
+            Connection c = DriverManager.getConnection(url, user, password);
+            log.trace("Db Connected: " + c.getMetaData().getDatabaseProductName());
+            return c;
+        }, size, timeout, idle, validate, statements);
+    }
+
+    // The name the pool is known by in JMX.
+    private static final String POOL_NAME = "com.oldcurmudgeon.toolbox.table:type=ConnectionPool,name=Db";
+
+    private String poolName() {
+        return name != null ? POOL_NAME + ",shard=" + ObjectName.quote(name) : POOL_NAME;
+    }
+
+    // So its waits and utilization can be watched.
+    private void register(ConnectionPool pool) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(pool, new ObjectName(poolName()));
+        } catch (Exception ex) {
+            // Still works without JMX.
+            log.debug("Failed to register the pool with JMX", ex);
+        }
+    }
+
+    private void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(poolName()));
+        } catch (Exception ex) {
+            log.debug("Failed to unregister the pool from JMX", ex);
+        }
+    }
+
+    /**
+     * The connection pool.
+     * <p>
+     * Its stats show wait time and utilization.
+     *
+     * @return ConnectionPool
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * The executor the async operations of the tables run on.
+     * <p>
+     * Virtual threads where the JVM has them (DbAsyncVirtual=true) - they
+     * just park while they wait for a connection. Otherwise daemon threads,
+     * one per connection in the pool, as any more would just queue for a
+     * connection anyway.
+     *
+     * @return ExecutorService
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            if (Boolean.parseBoolean(param("DbAsyncVirtual", "true"))) {
+                executor = virtualThreadExecutor();
+            }
+            if (executor == null) {
+                final AtomicInteger count = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(pool.getSize(), (Runnable r) -> {
+                    Thread t = new Thread(r, "Db-async-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Use your own executor for the async operations.
+     * <p>
+     * The current one (if any) is shut down.
+     *
+     * @param executor ExecutorService
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+        this.executor = executor;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor if it is there - we build for 8.
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            log.trace("No virtual threads: " + ex);
+            return null;
+        }
     }
 
     /**
@@ -160,6 +345,217 @@ public class Db {
         lock.unlock();
     }
 
+    /**
+     * Transaction isolation levels.
+     */
+    public enum Isolation {
+        // Whatever the connection has.
+        Default(-1),
+        ReadUncommitted(Connection.TRANSACTION_READ_UNCOMMITTED),
+        ReadCommitted(Connection.TRANSACTION_READ_COMMITTED),
+        RepeatableRead(Connection.TRANSACTION_REPEATABLE_READ),
+        Serializable(Connection.TRANSACTION_SERIALIZABLE);
+
+        final int level;
+
+        Isolation(int level) {
+            this.level = level;
+        }
+
+    }
+
+    /**
+     * The work of a transaction - may be run more than once if the database
+     * picks it as a deadlock victim so must not have other side effects.
+     *
+     * @param <T> What it makes.
+     */
+    public interface Work<T> {
+
+        T run(Db db) throws SQLException;
+
+    }
+
+    // Transactions run.
+    private final NumberStat transactions = new NumberStat("Transactions");
+    // Committed.
+    private final NumberStat commits = new NumberStat("Commits");
+    // Rolled back.
+    private final NumberStat rollbacks = new NumberStat("Rollbacks");
+    // Tried again after a deadlock or serialization failure.
+    private final NumberStat retries = new NumberStat("Retries");
+    // Gave up after too many retries.
+    private final NumberStat exhausted = new NumberStat("RetriesExhausted");
+    // Time slept backing off.
+    private final NumberStat backoffMillis = new NumberStat("BackoffMillis");
+    // Observable.
+    public final Stats transactionStats = new Stats(transactions, commits, rollbacks, retries, exhausted, backoffMillis);
+
+    /**
+     * A transaction on a connection bound to this thread until it is closed.
+     * <p>
+     * Closing without a commit rolls back.
+     * <p>
+     * try (Db.Transaction t = db.transaction(Db.Isolation.Serializable)) {
+     * ...
+     * t.commit();
+     * }
+     */
+    public class Transaction implements AutoCloseable {
+        // The connection.
+        private final ConnectionPool.Pooled p;
+        // Isolation to go back to - -1 if unchanged.
+        private final int restore;
+        // Committed or rolled back.
+        private boolean done = false;
+
+        private Transaction(Isolation isolation) throws SQLException {
+            p = begin();
+            int was = -1;
+            try {
+                if (isolation != Isolation.Default) {
+                    was = p.connection.getTransactionIsolation();
+                    if (was != isolation.level) {
+                        p.connection.setTransactionIsolation(isolation.level);
+                    } else {
+                        was = -1;
+                    }
+                }
+            } catch (SQLException ex) {
+                finish(p, false, -1);
+                throw ex;
+            }
+            restore = was;
+        }
+
+        public void commit() throws SQLException {
+            done();
+            finish(p, true, restore);
+        }
+
+        public void rollback() throws SQLException {
+            done();
+            finish(p, false, restore);
+        }
+
+        private void done() {
+            if (done) {
+                throw new IllegalStateException("Transaction already finished");
+            }
+            done = true;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (!done) {
+                rollback();
+            }
+        }
+
+    }
+
+    /**
+     * Start a transaction on this thread.
+     *
+     * @param isolation Isolation
+     * @return Transaction - ALWAYS close it.
+     * @throws SQLException
+     */
+    public Transaction transaction(Isolation isolation) throws SQLException {
+        return new Transaction(isolation);
+    }
+
+    /**
+     * Run the work in a transaction - trying again with a jittered backoff
+     * if the database rolls it back to break a deadlock or a serialization
+     * conflict.
+     * <p>
+     * Up to DbTxRetries (10) retries. Backs off a random time up to
+     * DbTxBackoffMillis (10) doubling each time up to DbTxBackoffMaxMillis (1000).
+     * <p>
+     * If this thread is already in a transaction the work just joins it - the
+     * outer one does any retrying.
+     *
+     * @param isolation Isolation
+     * @param work      Work
+     * @return What the work made.
+     * @throws SQLException
+     */
+    public <T> T inTransaction(Isolation isolation, Work<T> work) throws SQLException {
+        if (transaction.get() != null) {
+            return work.run(this);
+        }
+        int maxRetries = Integer.parseInt(param("DbTxRetries", "10"));
+        long backoff = Long.parseLong(param("DbTxBackoffMillis", "10"));
+        long maxBackoff = Long.parseLong(param("DbTxBackoffMaxMillis", "1000"));
+        for (int attempt = 0; ; attempt++) {
+            try (Transaction t = transaction(isolation)) {
+                T result = work.run(this);
+                t.commit();
+                return result;
+            } catch (SQLException ex) {
+                if (!retryable(ex)) {
+                    throw ex;
+                }
+                if (attempt >= maxRetries) {
+                    exhausted.inc();
+                    throw ex;
+                }
+                retries.inc();
+                // Full jitter so the victims don't all come back together.
+                long sleep = ThreadLocalRandom.current().nextLong(Math.min(maxBackoff, backoff << Math.min(attempt, 30)) + 1);
+                log.debug("Transaction retry " + (attempt + 1) + " after " + sleep + "ms: " + ex);
+                backoffMillis.add(sleep);
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the work in a transaction at the default isolation - see above.
+     *
+     * @param work Work
+     * @return What the work made.
+     * @throws SQLException
+     */
+    public <T> T inTransaction(Work<T> work) throws SQLException {
+        return inTransaction(Isolation.Default, work);
+    }
+
+    /**
+     * Is this thread in a transaction?
+     *
+     * @return boolean
+     */
+    public boolean isInTransaction() {
+        return transaction.get() != null;
+    }
+
+    // Worth another try? Deadlock victims and serialization failures.
+    static boolean retryable(SQLException ex) {
+        for (Throwable t = ex; t != null; t = t.getCause()) {
+            if (t instanceof SQLTransactionRollbackException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                for (SQLException e = (SQLException) t; e != null; e = e.getNextException()) {
+                    String state = e.getSQLState();
+                    // 40001 serialization failure, 40P01 deadlock. 1205 is Sql Server's deadlock victim.
+                    // Not all of class 40 - e.g. 40003 leaves us not knowing if it committed.
+                    if ("40001".equals(state) || "40P01".equals(state) || e.getErrorCode() == 1205) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * beginTransaction
      *
@@ -167,8 +563,7 @@ public class Db {
      */
     public boolean beginTransaction() throws SQLException {
         // NB: *** It is your responsibility to ALWAYS call endTransaction or rollbackTransaction unless aborting the whole application.
-        // Stop all autocommit so we can rollback.
-        connection.setAutoCommit(false);
+        begin();
         // Begin the transaction. Unnecessary ... jdbc seems to do this itself.
         //execute ( "BEGIN TRANSACTION" );
         return true;
@@ -181,9 +576,7 @@ public class Db {
         // End the transaction.
         //execute( "COMMIT TRANSACTION" );
         // Commit.
-        connection.commit();
-        // Back to autocommit.
-        connection.setAutoCommit(true);
+        finish(endOfTransaction(), true, -1);
     }
 
     /**
@@ -193,44 +586,131 @@ public class Db {
         // Roll back the transaction.
         //execute( "ROLLBACK TRANSACTION" );
         // Roll everything back.
-        connection.rollback();
-        // Back to autocommit.
-        connection.setAutoCommit(true);
+        finish(endOfTransaction(), false, -1);
     }
 
-    private void checkStatement(int count) throws IllegalStateException {
-        if (statementInUse.availablePermits() != count) {
-            throw new IllegalStateException("Permits = " + statementInUse.availablePermits() + " should be " + count + " ... will probably block. " + Thread.currentThread().getName());
+    // Bind a connection to this thread with autocommit off.
+    private ConnectionPool.Pooled begin() throws SQLException {
+        if (transaction.get() != null) {
+            throw new IllegalStateException("Transaction already in progress on " + Thread.currentThread().getName());
         }
+        // Hold one connection for this thread until the end.
+        ConnectionPool.Pooled p = pool.acquire();
+        try {
+            // Stop all autocommit so we can rollback.
+            p.connection.setAutoCommit(false);
+        } catch (SQLException ex) {
+            pool.release(p);
+            throw ex;
+        }
+        transaction.set(p);
+        transactions.inc();
+        return p;
+    }
+
+    // Commit or roll back, put the connection back as it was and release it.
+    private void finish(ConnectionPool.Pooled p, boolean commit, int isolation) throws SQLException {
+        if (transaction.get() == p) {
+            transaction.remove();
+        }
+        boolean failed = true;
+        try {
+            if (commit) {
+                p.connection.commit();
+                commits.inc();
+            } else {
+                p.connection.rollback();
+                rollbacks.inc();
+            }
+            failed = false;
+        } catch (SQLException ex) {
+            if (commit) {
+                // Don't leave it half done on a pooled connection.
+                try {
+                    p.connection.rollback();
+                    rollbacks.inc();
+                } catch (SQLException rex) {
+                    ex.setNextException(rex);
+                }
+            }
+            throw ex;
+        } finally {
+            boolean reset = false;
+            try {
+                if (isolation >= 0) {
+                    p.connection.setTransactionIsolation(isolation);
+                }
+                // Back to autocommit.
+                p.connection.setAutoCommit(true);
+                reset = true;
+            } finally {
+                if (reset) {
+                    pool.release(p, failed);
+                } else {
+                    // Can't hand it out like that.
+                    pool.discard(p);
+                }
+            }
+        }
+    }
+
+    // Unbind the transaction connection from this thread.
+    private ConnectionPool.Pooled endOfTransaction() {
+        ConnectionPool.Pooled p = transaction.get();
+        if (p == null) {
+            throw new IllegalStateException("No transaction in progress on " + Thread.currentThread().getName());
+        }
+        transaction.remove();
+        return p;
     }
 
     /**
      * createStatement
+     * <p>
+     * Takes a connection from the pool and hands out its statement. Inside a
+     * transaction it is always the statement of the transaction's connection.
+     * <p>
+     * It is your responsibility to ALWAYS call releaseStatement.
      *
      * @return Statement
      */
-    private final Object lockGet = new Object();
+    public Statement getStatement() throws SQLException {
+        ConnectionPool.Pooled p = transaction.get();
+        if (p == null) {
+            p = pool.acquire();
+            lent.put(p.statement, p);
+        }
+        log.trace("Statement locked !! " + Thread.currentThread().getName());
+        return p.statement;
+    }
 
-    public Statement getStatement() {
-        Statement s = null;
-        synchronized (lockGet) {
-            try {
-                if (false) {
-                    // Useful for debugging race conditions.
-                    try {
-                        //log.trace("Acquire: " + log.getStack());
-                        checkStatement(1);
-                    } catch (IllegalStateException ex) {
-                        log.debug(ex.toString(), ex);
-                    }
-                }
-                statementInUse.acquire();
-                log.trace("Statement locked !! " + Thread.currentThread().getName());
-                s = statement;
-            } catch (InterruptedException ex) {
-            }
+    /**
+     * prepareStatement
+     * <p>
+     * As getStatement but hands out a prepared statement from the connection's
+     * statement cache so the database only has to parse and plan it once per
+     * connection.
+     * <p>
+     * It is your responsibility to ALWAYS call releaseStatement.
+     *
+     * @param sql String
+     * @return PreparedStatement
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        ConnectionPool.Pooled p = transaction.get();
+        if (p != null) {
+            return p.prepare(sql);
         }
-        return s;
+        p = pool.acquire();
+        PreparedStatement ps;
+        try {
+            ps = p.prepare(sql);
+        } catch (SQLException | RuntimeException ex) {
+            pool.release(p);
+            throw ex;
+        }
+        lent.put(ps, p);
+        return ps;
     }
 
     /**
@@ -238,39 +718,46 @@ public class Db {
      *
      * @param statement Statement
      */
-    private final Object lockRelease = new Object();
-
     public void releaseStatement(Statement statement) {
-        synchronized (lockRelease) {
-            try {
-                if (false) {
-                    // Useful for debugging race conditions.
-                    try {
-                        //log.trace("Release: " + log.getStack());
-                        checkStatement(0);
-                    } catch (IllegalStateException ex) {
-                        log.debug(ex.toString(), ex);
-                    }
-                }
-                log.trace("Statement unlocked !! " + Thread.currentThread().getName());
-                statementInUse.release();
-            } catch (IllegalStateException ex) {
-                log.debug(ex.toString(), ex);
+        releaseStatement(statement, false);
+    }
+
+    /**
+     * releaseStatement
+     * <p>
+     * If it failed its connection is checked and thrown away if it has gone
+     * bad rather than being handed out again.
+     *
+     * @param statement Statement
+     * @param failed    boolean
+     */
+    public void releaseStatement(Statement statement, boolean failed) {
+        log.trace("Statement unlocked !! " + Thread.currentThread().getName());
+        ConnectionPool.Pooled p = lent.remove(statement);
+        if (p != null) {
+            p.returned(statement);
+            pool.release(p, failed);
+        } else {
+            // It belongs to a transaction which will release it at the end.
+            p = transaction.get();
+            if (p != null) {
+                p.returned(statement);
             }
         }
     }
 
     public boolean tableExists(String tableName) throws SQLException {
         boolean exists = false;
-        String query = "SELECT 1 FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_TYPE='BASE TABLE' AND TABLE_NAME='" + tableName + "'";
+        String query = dialect.tableExists(tableName);
         Statement s = getStatement();
         log.trace("SQL: " + query);
         try (ResultSet rs = s.executeQuery(query)) {
             if (rs.next()) {
                 exists = true;
             }
+        } finally {
+            releaseStatement(s);
         }
-        releaseStatement(s);
         return exists;
     }
 
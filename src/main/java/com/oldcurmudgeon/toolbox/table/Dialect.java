@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Everything that differs between the SQL of one database and another.
+ * <p>
+ * The defaults are standard SQL - override what your database does
+ * differently (or faster). The built-in ones are in Dialects. Name your own
+ * class in the DbDialect param to plug it in.
+ *
+ * @author OldCurmudgeon
+ */
+public interface Dialect {
+
+    /**
+     * Plain standard SQL - nothing overridden.
+     */
+    public static final Dialect STANDARD = new Dialect() {
+        @Override
+        public String toString() {
+            return "Standard";
+        }
+
+    };
+
+    /**
+     * Restrict the query to one page of its results.
+     *
+     * The page must deliver just the selected columns in the same order as the
+     * query.
+     *
+     * @param query   String - SELECT ... with no ORDER BY.
+     * @param columns List - the names of the columns the query selects, in order.
+     * @param orderBy String - what to order by (without ORDER BY).
+     * @param offset  long - rows to skip.
+     * @param limit   int - most rows to deliver.
+     * @return String
+     */
+    public default String page(String query, List<String> columns, String orderBy, long offset, int limit) {
+        return query + Table.CR + "ORDER BY " + orderBy
+                + Table.CR + "OFFSET " + offset + " ROWS FETCH NEXT " + limit + " ROWS ONLY";
+    }
+
+    /**
+     * Start of a multi-row insert of literal values - up to the first row.
+     *
+     * @param table   String
+     * @param columns String - comma separated.
+     * @return String
+     */
+    public default String insertPrefix(String table, String columns) {
+        return "INSERT INTO " + table + "(" + columns + ")\r\nVALUES (";
+    }
+
+    /**
+     * Between rows of a multi-row insert.
+     *
+     * @return String
+     */
+    public default String insertSeparator() {
+        return "),\r\n(";
+    }
+
+    /**
+     * End of a multi-row insert.
+     *
+     * @return String
+     */
+    public default String insertSuffix() {
+        return ")";
+    }
+
+    /**
+     * Is a JDBC batch of prepared inserts faster than a multi-row insert?
+     *
+     * @return boolean
+     */
+    public default boolean preferBatch() {
+        return true;
+    }
+
+    /**
+     * Insert rows of parameters, dealing with those already there by key.
+     * <p>
+     * Parameters are bound row by row in column order.
+     *
+     * @param table   String
+     * @param alias   String
+     * @param columns List - all of the columns written.
+     * @param key     List - the columns that identify a row.
+     * @param rows    int - how many rows of parameters.
+     * @param update  boolean - update those already there, otherwise leave them.
+     * @return String - null if the database cannot do it in one statement.
+     */
+    public default String upsert(String table, String alias, List<String> columns, List<String> key, int rows, boolean update) {
+        return Dialects.standardUpsert(table, alias, columns, key, rows, update);
+    }
+
+    /**
+     * Most parameters allowed in one statement.
+     *
+     * @return int
+     */
+    public default int maxParameters() {
+        return 10000;
+    }
+
+    /**
+     * Most rows allowed in one VALUES list.
+     *
+     * @return int
+     */
+    public default int maxRows() {
+        return 1000;
+    }
+
+    /**
+     * A Timestamp as a literal.
+     *
+     * @param ts Timestamp
+     * @return String
+     */
+    public default String timestamp(Timestamp ts) {
+        // JDBC escape with the millis - the driver translates.
+        return Dialects.jdbcTime.format(ts);
+    }
+
+    /**
+     * A query that returns a row if the table exists.
+     *
+     * @param table String
+     * @return String
+     */
+    public default String tableExists(String table) {
+        return "SELECT 1 FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_TYPE='BASE TABLE' AND TABLE_NAME='" + table + "'";
+    }
+
+    /**
+     * The remainder of dividing by n.
+     *
+     * @param expression String
+     * @param n          int
+     * @return String
+     */
+    public default String mod(String expression, int n) {
+        return "MOD(" + expression + ", " + n + ")";
+    }
+
+    /**
+     * Anything that goes after the ) of a CREATE TABLE.
+     *
+     * @return String
+     */
+    public default String createTableSuffix() {
+        return "";
+    }
+
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import com.oldcurmudgeon.toolbox.containers.Params;
+import com.oldcurmudgeon.toolbox.table.Field.Type;
+import com.oldcurmudgeon.toolbox.walkers.Separator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The dialects I know.
+ *
+ * @author OldCurmudgeon
+ */
+public enum Dialects implements Dialect {
+
+    /**
+     * SQL Server 2005 and before.
+     * <p>
+     * No multi-row VALUES so inserts are UNION ALLs - a batch is faster. No
+     * MERGE. No OFFSET so pages use ROW_NUMBER.
+     */
+    Sql2005 {
+        @Override
+        public String insertPrefix(String table, String columns) {
+            return "INSERT INTO " + table + "(" + columns + ")\r\nSELECT ";
+        }
+
+        @Override
+        public String insertSeparator() {
+            return "\r\nUNION ALL SELECT ";
+        }
+
+        @Override
+        public String insertSuffix() {
+            return "";
+        }
+
+        @Override
+        public String upsert(String table, String alias, List<String> columns, List<String> key, int rows, boolean update) {
+            return null;
+        }
+
+        @Override
+        public String page(String query, List<String> columns, String orderBy, long offset, int limit) {
+            return rowNumberPage(query, columns, orderBy, offset, limit);
+        }
+
+    },
+    /**
+     * SQL Server 2008.
+     * <p>
+     * Multi-row VALUES beats the driver's batches which go one at a time.
+     */
+    Sql2008 {
+        @Override
+        public boolean preferBatch() {
+            return false;
+        }
+
+        @Override
+        public String page(String query, List<String> columns, String orderBy, long offset, int limit) {
+            return rowNumberPage(query, columns, orderBy, offset, limit);
+        }
+
+    },
+    /**
+     * SQL Server 2012 on - has OFFSET ... FETCH.
+     */
+    Sql2012 {
+        @Override
+        public boolean preferBatch() {
+            return false;
+        }
+
+    },
+    /**
+     * H2 - embedded so we can try everything out locally.
+     */
+    H2 {
+        @Override
+        public String page(String query, List<String> columns, String orderBy, long offset, int limit) {
+            return query + Table.CR + "ORDER BY " + orderBy + Table.CR + "LIMIT " + limit + " OFFSET " + offset;
+        }
+
+        @Override
+        public String upsert(String table, String alias, List<String> columns, List<String> key, int rows, boolean update) {
+            if (update) {
+                // H2's own - much simpler to execute.
+                return "MERGE INTO " + table + " (" + list(columns, "") + ") KEY (" + list(key, "") + ")"
+                        + Table.CR + "VALUES " + valueRows(columns.size(), rows);
+            }
+            return standardUpsert(table, alias, columns, key, rows, update);
+        }
+
+        @Override
+        public int maxParameters() {
+            return 30000;
+        }
+
+        @Override
+        public int maxRows() {
+            return 10000;
+        }
+
+        @Override
+        public String timestamp(Timestamp ts) {
+            return h2Time.format(ts);
+        }
+
+        @Override
+        public String tableExists(String table) {
+            // Unquoted names are upper case and 1.4 calls them just TABLE.
+            return "SELECT 1 FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_TYPE IN ('TABLE', 'BASE TABLE')"
+                    + " AND TABLE_NAME=UPPER('" + table + "')";
+        }
+
+        @Override
+        public String createTableSuffix() {
+            return "";
+        }
+
+        @Override
+        public String mod(String expression, int n) {
+            return "MOD(" + expression + ", " + n + ")";
+        }
+
+    };
+
+    // Time formats for literals.
+    static final Field.DbTimeFormat jdbcTime = new Field.DbTimeFormat(new SimpleDateFormat("'{ts '''yyyy-MM-dd HH:mm:ss.SSS'''}'"));
+    private static final Field.DbTimeFormat isoTime = new Field.DbTimeFormat(new SimpleDateFormat("''yyyy-MM-dd'T'HH:mm:ss.SSS''"));
+    private static final Field.DbTimeFormat h2Time = new Field.DbTimeFormat(new SimpleDateFormat("'TIMESTAMP '''yyyy-MM-dd HH:mm:ss.SSS''"));
+
+    /*
+     * Everything SQL Server has in common - the others override it all.
+     */
+
+    @Override
+    public String upsert(String table, String alias, List<String> columns, List<String> key, int rows, boolean update) {
+        // Hold the key range so a concurrent upsert can't slip a row in.
+        return merge(table + " WITH (HOLDLOCK) AS " + alias, alias, "(VALUES " + valueRows(columns.size(), rows)
+                + ") AS Upsert (" + list(columns, "") + ")", columns, key, update);
+    }
+
+    @Override
+    public int maxParameters() {
+        // The real limit is 2100.
+        return 2000;
+    }
+
+    @Override
+    public String timestamp(Timestamp ts) {
+        // ISO 8601 is never misread whatever the language settings.
+        return isoTime.format(ts);
+    }
+
+    @Override
+    public String createTableSuffix() {
+        return " ON [PRIMARY]";
+    }
+
+    @Override
+    public String mod(String expression, int n) {
+        return expression + " % " + n;
+    }
+
+    /**
+     * Which dialect is the database.
+     * <p>
+     * Anything I don't know gets plain standard SQL - set DbDialect if that
+     * won't do.
+     *
+     * @param meta DatabaseMetaData
+     * @return Dialect
+     * @throws SQLException
+     */
+    public static Dialect of(DatabaseMetaData meta) throws SQLException {
+        String name = meta.getDatabaseProductName();
+        if (name.startsWith("H2")) {
+            return H2;
+        }
+        if (name.startsWith("Microsoft SQL Server")) {
+            int version = meta.getDatabaseMajorVersion();
+            return version >= 11 ? Sql2012 : version == 10 ? Sql2008 : Sql2005;
+        }
+        return STANDARD;
+    }
+
+    /**
+     * One of mine (or Standard) by name or the name of a class implementing
+     * Dialect.
+     *
+     * @param name String
+     * @return Dialect
+     * @throws ReflectiveOperationException
+     */
+    public static Dialect forName(String name) throws ReflectiveOperationException {
+        for (Dialects d : values()) {
+            if (d.name().equalsIgnoreCase(name)) {
+                return d;
+            }
+        }
+        if (STANDARD.toString().equalsIgnoreCase(name)) {
+            return STANDARD;
+        }
+        return (Dialect) Class.forName(name).getDeclaredConstructor().newInstance();
+    }
+
+    // SELECT ... ROW_NUMBER() between the limits. The columns are named so
+    // RowNumber isn't delivered with them.
+    static String rowNumberPage(String query, List<String> columns, String orderBy, long offset, int limit) {
+        // Strip the SELECT.
+        String rest = query.trim().substring("SELECT ".length());
+        return "SELECT " + list(columns, "Paged.") + " FROM (SELECT ROW_NUMBER() OVER (ORDER BY " + orderBy + ") AS RowNumber, " + rest + ") AS Paged"
+                + Table.CR + "WHERE RowNumber BETWEEN " + (offset + 1) + " AND " + (offset + limit)
+                + Table.CR + "ORDER BY RowNumber";
+    }
+
+    // The VALUES is wrapped in a SELECT as not everyone can put a column list
+    // on the source of a MERGE.
+    static String standardUpsert(String table, String alias, List<String> columns, List<String> key, int rows, boolean update) {
+        return merge(table + " AS " + alias, alias, "(SELECT * FROM (VALUES " + valueRows(columns.size(), rows)
+                + ") AS Upserts (" + list(columns, "") + ")) AS Upsert", columns, key, update);
+    }
+
+    /**
+     * MERGE INTO T AS A
+     * USING (...) AS Upsert
+     * ON A.Id = Upsert.Id
+     * WHEN MATCHED THEN UPDATE SET Name = Upsert.Name
+     * WHEN NOT MATCHED THEN INSERT (Id, Name) VALUES (Upsert.Id, Upsert.Name);
+     */
+    static String merge(String target, String alias, String source, List<String> columns, List<String> key, boolean update) {
+        StringBuilder q = new StringBuilder("MERGE INTO ").append(target)
+                .append(Table.CR).append("USING ").append(source)
+                .append(Table.CR).append("ON ");
+        Separator and = new Separator(" AND ");
+        for (String k : key) {
+            q.append(and.sep()).append(alias).append(".").append(k).append(" = Upsert.").append(k);
+        }
+        if (update && !key.containsAll(columns)) {
+            q.append(Table.CR).append("WHEN MATCHED THEN UPDATE SET ");
+            Separator comma = new Separator(Table.COMMA);
+            for (String c : columns) {
+                if (!key.contains(c)) {
+                    q.append(comma.sep()).append(c).append(" = Upsert.").append(c);
+                }
+            }
+        }
+        return q.append(Table.CR).append("WHEN NOT MATCHED THEN INSERT (").append(list(columns, "")).append(")")
+                .append(Table.CR).append("VALUES (").append(list(columns, "Upsert.")).append(");").toString();
+    }
+
+    // (?, ?), (?, ?) ...
+    static String valueRows(int width, int rows) {
+        StringBuilder row = new StringBuilder("(");
+        Separator comma = new Separator(", ");
+        for (int i = 0; i < width; i++) {
+            row.append(comma.sep()).append("?");
+        }
+        row.append(")");
+        StringBuilder all = new StringBuilder();
+        Separator sep = new Separator("," + Table.CR);
+        for (int i = 0; i < rows; i++) {
+            all.append(sep.sep()).append(row);
+        }
+        return all.toString();
+    }
+
+    // a, b, c each with the prefix.
+    static String list(List<String> names, String prefix) {
+        StringBuilder l = new StringBuilder();
+        Separator comma = new Separator(", ");
+        for (String n : names) {
+            l.append(comma.sep()).append(prefix).append(n);
+        }
+        return l.toString();
+    }
+
+    public static void main(String args[]) {
+        Tester.test();
+    }
+
+    /**
+     * Runs the table package against an in-memory H2 in each of the dialects
+     * H2 can speak - Sql2005 pages with ROW_NUMBER as Sql2008 does.
+     * <p>
+     * Needs the H2 driver on the class path.
+     */
+    static class Tester {
+        // TESTING.
+        // How many widgets to start with.
+        static final int N = 250;
+        // Page size.
+        static final int PAGE = 40;
+
+        // The table.
+        static class Widgets extends Table<Widgets.Column> {
+
+            public enum Column implements Table.Columns {
+
+                Id(Type.Long, "BIGINT", false),
+                Name(Type.String, "VARCHAR(50)", true),
+                Made(Type.Timestamp, "TIMESTAMP", true);
+
+                final Type type;
+                final String dbType;
+                final boolean allowNulls;
+
+                Column(Type type, String dbType, boolean allowNulls) {
+                    this.type = type;
+                    this.dbType = dbType;
+                    this.allowNulls = allowNulls;
+                }
+
+                @Override
+                public final Type getType() {
+                    return type;
+                }
+
+                @Override
+                public final String getDbType() {
+                    return dbType;
+                }
+
+                @Override
+                public final boolean getAllowNulls() {
+                    return allowNulls;
+                }
+
+            }
+
+            // Keys.
+            static final EnumSet<Column> idKey = EnumSet.of(Column.Id);
+
+            Widgets(Db db) {
+                super(db, "Widgets", "W", EnumSet.allOf(Column.class));
+            }
+
+            @Override
+            protected String[] makeIndexQueries() {
+                return new String[]{"CREATE UNIQUE INDEX WidgetId ON " + tableName + "(Id)"};
+            }
+
+            // Widgets from to to with their names.
+            void add(long from, long to) throws SQLException {
+                Inserter inserter = inserter(EnumSet.allOf(Column.class));
+                for (long id = from; id < to; id++) {
+                    reset();
+                    setField(Column.Id, id);
+                    setField(Column.Name, name(id));
+                    setField(Column.Made, new Timestamp(id * 1000));
+                    inserter.add();
+                }
+                inserter.close();
+            }
+
+        }
+
+        // Its id.
+        static class WidgetID extends ID<Widgets.Column> {
+            WidgetID(long id) {
+                super(EnumSet.allOf(Widgets.Column.class));
+                fields.setField(Widgets.Column.Id, id);
+            }
+
+            @Override
+            public String toString() {
+                return toID();
+            }
+
+            @Override
+            public String toID() {
+                return fields.getForDb(Widgets.Column.Id);
+            }
+
+        }
+
+        static String name(long id) {
+            return "Widget " + id;
+        }
+
+        // What it should be.
+        static void check(String what, Object expected, Object got) {
+            if (!Objects.equals(expected, got)) {
+                throw new IllegalStateException(what + " expected " + expected + " got " + got);
+            }
+        }
+
+        // Check its name is the one it was given.
+        static void check(Fields<Widgets.Column> f, String name) {
+            check("Name of " + f, name, f.getField(Widgets.Column.Name).value());
+        }
+
+        // All of them a page at a time - checking each is in order and where it should be.
+        static List<Fields<Widgets.Column>> pages(Widgets w) throws SQLException {
+            List<Fields<Widgets.Column>> all = new ArrayList<>();
+            String token = null;
+            do {
+                Table<Widgets.Column>.Page page = w.readPage(w.allColumns(), null, Widgets.idKey, token, PAGE);
+                for (Fields<Widgets.Column> f : page.getRecords()) {
+                    check("Id", (long) all.size(), f.getField(Widgets.Column.Id).value());
+                    check("Made of " + f, new Timestamp(all.size() * 1000L), f.getField(Widgets.Column.Made).value());
+                    all.add(f);
+                }
+                token = page.hasMore() ? page.getToken() : null;
+            } while (token != null);
+            return all;
+        }
+
+        // Test this one.
+        static void test(Dialect dialect) throws SQLException, ClassNotFoundException, IOException {
+            String name = dialect.toString();
+            Params.getParams()
+                    .set("DbDriver." + name, "org.h2.Driver")
+                    .set("DbURL." + name, "jdbc:h2:mem:Dialects;DB_CLOSE_DELAY=-1")
+                    .set("DbUser." + name, "sa")
+                    .set("DbPassword." + name, "")
+                    .set("DbDialect." + name, name);
+            Db db = Db.getDb(name);
+            try {
+                Widgets w = new Widgets(db);
+                if (dialect == H2) {
+                    // H2 goes first and makes it - Sql Server's DDL is no good here.
+                    w.ensureTableExists();
+                }
+                w.truncate();
+                w.add(0, N);
+                // Paging.
+                List<Fields<Widgets.Column>> all = pages(w);
+                check("Paged", N, all.size());
+                for (Fields<Widgets.Column> f : all) {
+                    check(f, name((Long) f.getField(Widgets.Column.Id).value()));
+                }
+                // Upsert - updating ten that are there and adding ten more.
+                List<Fields<Widgets.Column>> upserts = new ArrayList<>();
+                for (long id = N - 10; id < N + 10; id++) {
+                    Fields<Widgets.Column> f = new Fields<>(w.allColumns());
+                    f.setField(Widgets.Column.Id, id);
+                    f.setField(Widgets.Column.Name, "Updated " + id);
+                    f.setField(Widgets.Column.Made, new Timestamp(id * 1000));
+                    upserts.add(f);
+                }
+                List<Fields<Widgets.Column>> updated = w.upsertRecords(upserts, Widgets.idKey, Table.Conflict.Update);
+                check("Updated", 20, updated.size());
+                for (int i = 0; i < updated.size(); i++) {
+                    check(updated.get(i), "Updated " + (N - 10 + i));
+                }
+                // And insert-if-absent - those there stay as they are.
+                for (Fields<Widgets.Column> f : upserts) {
+                    f.setField(Widgets.Column.Name, "Ignored");
+                }
+                List<Fields<Widgets.Column>> ignored = w.upsertRecords(upserts, Widgets.idKey, Table.Conflict.Ignore);
+                for (int i = 0; i < ignored.size(); i++) {
+                    check(ignored.get(i), "Updated " + (N - 10 + i));
+                }
+                // By ids - in as few queries as it can. Some aren't there.
+                List<WidgetID> ids = new ArrayList<>();
+                for (long id = 0; id < N + 20; id += 3) {
+                    ids.add(new WidgetID(id));
+                }
+                @SuppressWarnings("rawtypes")
+                Map<ID, Fields<Widgets.Column>> red = w.readRecords(Widgets.idKey, ids);
+                for (WidgetID id : ids) {
+                    long i = Long.parseLong(id.toID());
+                    Fields<Widgets.Column> f = red.get(id);
+                    if (i < N + 10) {
+                        check(f, i < N - 10 ? name(i) : "Updated " + i);
+                    } else {
+                        check("Missing " + id, null, f);
+                    }
+                }
+                // Out and back in again in each format.
+                for (Transfer.Format format : Transfer.Format.values()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    check(format + " exported", (long) N + 10, Transfer.export(w, w.allColumns(), format, Channels.newChannel(out)));
+                    w.truncate();
+                    check(format + " loaded", (long) N + 10, Transfer.load(w, format, Channels.newChannel(new ByteArrayInputStream(out.toByteArray()))));
+                    check(format + " paged", N + 10, pages(w).size());
+                }
+                System.out.println(name + " ok.");
+            } finally {
+                db.close();
+            }
+        }
+
+        // Main tester
+        public static void test() {
+            for (Dialect dialect : new Dialect[]{H2, STANDARD, Sql2005}) {
+                try {
+                    test(dialect);
+                } catch (Throwable t) {
+                    System.out.println(dialect + " Failed: " + t);
+                    t.printStackTrace(System.out);
+                }
+            }
+        }
+
+    }
+
+}
@@ -15,9 +15,11 @@
  */
 package com.oldcurmudgeon.toolbox.table;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -41,8 +43,8 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     private Type type;
     // The value of this field.
     private final Object value;
-    // Its representation in the db
-    private final String forDb;
+    // Its representation in the db - made when first asked for.
+    private String forDb = null;
     // ThreadLocal version for date formatting.
     private static final DbTimeFormat dbTimeFormat = new DbTimeFormat(new SimpleDateFormat("'{ts' ''yyyy-MM-dd HH:mm:ss'''}'"));
 
@@ -54,15 +56,39 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     public enum Type {
 
         // String type.
-        String() {
+        String(Types.VARCHAR) {
             // ResultSet getter.
             @Override
             public Field get(ResultSet rs, String colName) throws SQLException {
                 return new Field(rs.getString(colName).trim());
             }
+
+            @Override
+            public Field get(ResultSet rs, int index) throws SQLException {
+                String s = rs.getString(index);
+                return s != null ? new Field(s.trim()) : null;
+            }
+
+            // PreparedStatement setter.
+            @Override
+            public void set(PreparedStatement ps, int index, Object value) throws SQLException {
+                ps.setString(index, ((String) value).trim());
+            }
+
+            // Quoted.
+            @Override
+            String forDb(Object value) {
+                return "'" + ((String) value).trim() + "'";
+            }
+
+            // From its toString.
+            @Override
+            public Field parse(String s) {
+                return new Field(s);
+            }
         },
         // Enum type.
-        Enum() {
+        Enum(Types.VARCHAR) {
             // ResultSet getter.
             @Override
             public Field get(ResultSet rs, String colName) throws SQLException {
@@ -71,6 +97,31 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
                 return new Field(rs.getString(colName).trim());
             }
 
+            @Override
+            public Field get(ResultSet rs, int index) throws SQLException {
+                String s = rs.getString(index);
+                return s != null ? new Field(s.trim()) : null;
+            }
+
+            // PreparedStatement setter.
+            @Override
+            public void set(PreparedStatement ps, int index, Object value) throws SQLException {
+                // Could be an enum or a String read from the db.
+                ps.setString(index, value.toString());
+            }
+
+            // Quoted.
+            @Override
+            String forDb(Object value) {
+                return "'" + value + "'";
+            }
+
+            // From its toString - held as a String like it is when read.
+            @Override
+            public Field parse(String s) {
+                return new Field(s);
+            }
+
             // Comparer.
             @Override
             public int compare(Object a, Object b) {
@@ -89,37 +140,121 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
             }
         },
         // Boolean
-        Boolean() {
+        Boolean(Types.BOOLEAN) {
             // ResultSet getter.
             @Override
             public Field get(ResultSet rs, String colName) throws SQLException {
                 return new Field(rs.getBoolean(colName));
             }
+
+            @Override
+            public Field get(ResultSet rs, int index) throws SQLException {
+                boolean b = rs.getBoolean(index);
+                return rs.wasNull() ? null : new Field(b);
+            }
+
+            // 1 or 0.
+            @Override
+            String forDb(Object value) {
+                return (Boolean) value ? "1" : "0";
+            }
+
+            // PreparedStatement setter.
+            @Override
+            public void set(PreparedStatement ps, int index, Object value) throws SQLException {
+                ps.setBoolean(index, (Boolean) value);
+            }
+
+            // From its toString.
+            @Override
+            public Field parse(String s) {
+                return new Field(java.lang.Boolean.valueOf(s));
+            }
         },
         // Integer
-        Integer() {
+        Integer(Types.INTEGER) {
             // ResultSet getter.
             @Override
             public Field get(ResultSet rs, String colName) throws SQLException {
                 return new Field(rs.getInt(colName));
             }
+
+            @Override
+            public Field get(ResultSet rs, int index) throws SQLException {
+                int i = rs.getInt(index);
+                return rs.wasNull() ? null : new Field(i);
+            }
+
+            // PreparedStatement setter.
+            @Override
+            public void set(PreparedStatement ps, int index, Object value) throws SQLException {
+                ps.setInt(index, (Integer) value);
+            }
+
+            // From its toString.
+            @Override
+            public Field parse(String s) {
+                return new Field(java.lang.Integer.valueOf(s));
+            }
         },
         // Long
-        Long() {
+        Long(Types.BIGINT) {
             // ResultSet getter.
             @Override
             public Field get(ResultSet rs, String colName) throws SQLException {
                 return new Field(rs.getLong(colName));
             }
+
+            @Override
+            public Field get(ResultSet rs, int index) throws SQLException {
+                long l = rs.getLong(index);
+                return rs.wasNull() ? null : new Field(l);
+            }
+
+            // PreparedStatement setter.
+            @Override
+            public void set(PreparedStatement ps, int index, Object value) throws SQLException {
+                ps.setLong(index, (Long) value);
+            }
+
+            // From its toString.
+            @Override
+            public Field parse(String s) {
+                return new Field(java.lang.Long.valueOf(s));
+            }
         },
         // Timestamp
-        Timestamp() {
+        Timestamp(Types.TIMESTAMP) {
             // ResultSet getter.
             @Override
             public Field get(ResultSet rs, String colName) throws SQLException {
                 return new Field(rs.getTimestamp(colName));
             }
 
+            @Override
+            public Field get(ResultSet rs, int index) throws SQLException {
+                Timestamp t = rs.getTimestamp(index);
+                return t != null ? new Field(t) : null;
+            }
+
+            // Formatting dates is slow - hence only when needed.
+            @Override
+            String forDb(Object value) {
+                return dbTimeFormat.format((Timestamp) value);
+            }
+
+            // PreparedStatement setter.
+            @Override
+            public void set(PreparedStatement ps, int index, Object value) throws SQLException {
+                ps.setTimestamp(index, (Timestamp) value);
+            }
+
+            // From its toString - which keeps the nanos.
+            @Override
+            public Field parse(String s) {
+                return new Field(java.sql.Timestamp.valueOf(s));
+            }
+
             @Override
             public Object copy(Object value) {
                 // Timestamps are mutable so a copy must make a new one.
@@ -128,6 +263,18 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
             }
         };
 
+        // The java.sql.Types of a null.
+        private final int sqlType;
+
+        Type(int sqlType) {
+            this.sqlType = sqlType;
+        }
+
+        // Into PreparedStatement as a null.
+        public void setNull(PreparedStatement ps, int index) throws SQLException {
+            ps.setNull(index, sqlType);
+        }
+
         // Immutables can just be the original.
         // Override this for any mutables we handle such as Timestamp.
         public Object copy(Object value) {
@@ -146,9 +293,34 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
             return a.compareTo(b);
         }
 
+        // The db form of a value - numbers by default.
+        String forDb(Object value) {
+            return value.toString();
+        }
+
         // Getters.
         // From ResultSet. All must implement.
         public abstract Field get(ResultSet rs, String colName) throws SQLException;
+
+        // From ResultSet by column index - null if it was null. All must implement.
+        public abstract Field get(ResultSet rs, int index) throws SQLException;
+
+        // Setters.
+        // Into PreparedStatement. All must implement.
+        public abstract void set(PreparedStatement ps, int index, Object value) throws SQLException;
+
+        // Parsers.
+        // From the toString of a value. All must implement.
+        public abstract Field parse(String s);
+    }
+
+    /**
+     * Get the type of the field.
+     *
+     * @return Type
+     */
+    public Type getType() {
+        return type;
     }
 
     /**
@@ -169,7 +341,23 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
      * @return String
      */
     public String forDb() {
-        return forDb;
+        String s = forDb;
+        if (s == null) {
+            // Harmless if two threads race - they make the same String.
+            forDb = s = type.forDb(value);
+        }
+        return s;
+    }
+
+    /**
+     * Bind the value of this field to a parameter of a PreparedStatement.
+     *
+     * @param ps    PreparedStatement
+     * @param index int
+     * @throws SQLException
+     */
+    public void bind(PreparedStatement ps, int index) throws SQLException {
+        type.set(ps, index, value);
     }
 
     /**
@@ -192,7 +380,6 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     public Field(Timestamp timestamp) {
         type = Type.Timestamp;
         value = timestamp;
-        forDb = dbTimeFormat.format(timestamp);
     }
 
     /**
@@ -203,7 +390,6 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     public Field(String s) {
         type = Type.String;
         value = s;
-        forDb = "'" + s.trim() + "'";
     }
 
     /**
@@ -214,7 +400,6 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     public Field(Integer i) {
         type = Type.Integer;
         value = new Integer(i);
-        forDb = "" + i;
     }
 
     /**
@@ -225,7 +410,6 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     public Field(Long l) {
         type = Type.Long;
         value = new Long(l);
-        forDb = "" + l;
     }
 
     /**
@@ -236,7 +420,6 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     public Field(Boolean b) {
         type = Type.Boolean;
         value = b;
-        forDb = (b.booleanValue() ? "1" : "0");
     }
 
     /**
@@ -247,7 +430,6 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
     public Field(Enum e) {
         type = Type.Enum;
         value = e;
-        forDb = "'" + e + "'";
     }
 
     /**
@@ -316,6 +498,6 @@ public class Field<Column extends Enum<Column>> implements Comparable<Field<?>>
      */
     @Override
     public String toString() {
-        return forDb;
+        return forDb();
     }
 }
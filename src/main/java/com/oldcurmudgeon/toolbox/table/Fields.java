@@ -19,6 +19,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>Title: PEDTracker</p>
@@ -42,6 +43,8 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
     protected final EnumSet<Column> changed;
     // Map from column name to column enum.
     private final Map<String, Column> columnNames;
+    // Column name maps by Column enum - they never change so share them.
+    private static final Map<Class<?>, Map<String, ?>> allColumnNames = new ConcurrentHashMap<>();
 
     /**
      * Build a set of fields, one for each column.
@@ -49,36 +52,39 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
      * @param columns Set
      */
     public Fields(Set<Column> columns) {
+        this(columns, true);
+    }
+
+    /**
+     * Build a set of fields, one for each column.
+     * <p>
+     * Subclasses that hold their values elsewhere need no map but must then
+     * override all of the storage methods.
+     *
+     * @param columns Set
+     * @param map     boolean - make the EnumMap of fields.
+     */
+    protected Fields(Set<Column> columns, boolean map) {
         // Those are my columns.
         this.columns = columns;
 
         // A sample column used to find the universe of the enum of Columns.
-        Column sampleCol = columns.iterator().next();
-
-        // Build the column names map.
-        columnNames = new HashMap<>();
-        Set<Column> allColumns = EnumSet.allOf(sampleCol.getDeclaringClass());
-        // Fill it.
-        for (Column c : allColumns) {
-            columnNames.put(c.name(), c);
-        }
+        Class<Column> universe = columns.iterator().next().getDeclaringClass();
 
-        // I want to make fields an EnumMap for efficiency.
-        // This is a wierd way of doing it - if you can think
-        // of a better way please replace this code.
-
-        // Make a template HashMap for the EnumMap
-        HashMap<Column, Field> template = new HashMap<>();
-        // Add one item to it. Assumes there is at least one column, which makes sense.
-        // Doesnt matter what field type I put in it.
-        template.put(sampleCol, new Field<Column>(0));
-        // Build the EnumMap from the template HashMap.
-        fields = new EnumMap(template);
-        // Clear out my sample entry.
-        fields.clear();
+        // Build (once) the column names map.
+        columnNames = (Map<String, Column>) allColumnNames.computeIfAbsent(universe, u -> {
+            Map<String, Column> names = new HashMap<>();
+            for (Column c : EnumSet.allOf(universe)) {
+                names.put(c.name(), c);
+            }
+            return names;
+        });
+
+        // An EnumMap for efficiency.
+        fields = map ? new EnumMap<>(universe) : null;
 
         // Start the changed set empty.
-        changed = EnumSet.noneOf(sampleCol.getDeclaringClass());
+        changed = EnumSet.noneOf(universe);
     }
 
     /**
@@ -154,16 +160,15 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
      * @param type   Copy
      */
     private void copy(Field<Column> f, Column column, Copy type) {
-        Field<Column> t = fields.get(column);
-        if (type.shouldCopy(f == null, t == null)) {
+        if (type.shouldCopy(f == null, !hasField(column))) {
             if (f != null) {
                 // Clone it.
                 changeField(column, new Field<>(f));
             } else {
                 // It's null! Bin it.
-                if (fields.containsKey(column)) {
+                if (hasField(column)) {
                     changed.add(column);
-                    fields.remove(column);
+                    removeField(column);
                 }
             }
         }
@@ -216,14 +221,13 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
      * @param c Column
      * @param f Field
      */
-    private void trackChanges(Column c, Field f) {
+    private void trackChanges(Column c, Field<Column> f) {
         if (f != null) {
             // What was it?
-            Field old = fields.get(c);
-            if (old != null) {
+            if (hasField(c)) {
                 // Compare them.
                 // Cant use old.equals because we may be doing a copyCorresponding.
-                if (!old.forDb().equals(f.forDb())) {
+                if (!sameForDb(c, f)) {
                     // The DB form of the field has changed!
                     changed.add(c);
                 }
@@ -243,7 +247,7 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
      */
     public void clear() {
         // Remove all fields.
-        fields.clear();
+        removeFields();
         clearChanges();
     }
 
@@ -274,7 +278,7 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
             // Only the ones specified.
             if (which.contains(column)) {
                 // Bin it.
-                fields.remove(column);
+                removeField(column);
                 changed.add(column);
             }
         }
@@ -306,7 +310,7 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
      * @param column Column
      * @return Object
      */
-    private Object getValue(Column column) {
+    protected Object getValue(Column column) {
         Field<Column> f = getField(column);
         return f != null ? f.value() : null;
     }
@@ -478,15 +482,28 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
      * @param b      Boolean
      */
     public void setField(Column column, ResultSet rs) throws SQLException {
+        setField(column, rs, rs.findColumn(column.name()));
+    }
+
+    /**
+     * Set a field's value from a column of a ResultSet by its index - much
+     * quicker than by name.
+     *
+     * @param column Column
+     * @param rs     ResultSet
+     * @param index  int - of the column in the ResultSet.
+     * @throws SQLException
+     */
+    public void setField(Column column, ResultSet rs, int index) throws SQLException {
+        // Use the ResultSet getter built into the type.
+        Field<Column> newField = column.getType().get(rs, index);
         // Dont collect nulls.
-        if (rs.getObject(column.name()) != null) {
-            // Use the ResultSet getter built into the type.
-            Field<Column> newField = column.getType().get(rs, column.name());
+        if (newField != null) {
             changeField(column, newField);
         } else {
             // Remove it if it was null in db.
-            if (fields.containsKey(column)) {
-                fields.remove(column);
+            if (hasField(column)) {
+                removeField(column);
                 changed.add(column);
             }
         }
@@ -498,9 +515,64 @@ public class Fields<Column extends Enum<Column> & Table.Columns> {
      * @param column   Column
      * @param newField Field
      */
-    private void changeField(Column column, Field<Column> newField) {
+    protected void changeField(Column column, Field<Column> newField) {
         trackChanges(column, newField);
-        fields.put(column, newField);
+        putField(column, newField);
+    }
+
+    // Storage - override all of these to store fields some other way.
+
+    /**
+     * Is there a value for the column.
+     *
+     * @param column Column
+     * @return boolean
+     */
+    protected boolean hasField(Column column) {
+        return fields.containsKey(column);
+    }
+
+    /**
+     * Store the field - no change tracking.
+     *
+     * @param column Column
+     * @param field  Field
+     */
+    protected void putField(Column column, Field<Column> field) {
+        fields.put(column, field);
+    }
+
+    /**
+     * Remove the field - no change tracking.
+     *
+     * @param column Column
+     */
+    protected void removeField(Column column) {
+        fields.remove(column);
+    }
+
+    /**
+     * Remove all fields - no change tracking.
+     */
+    protected void removeFields() {
+        fields.clear();
+    }
+
+    /**
+     * Is the db form of the current value of the column the same as that of
+     * the field.
+     *
+     * @param column Column
+     * @param field  Field
+     * @return boolean
+     */
+    protected boolean sameForDb(Column column, Field<Column> field) {
+        Field<Column> old = fields.get(column);
+        // Equal values don't need their db forms made.
+        if (old.getType() == field.getType() && old.value().equals(field.value())) {
+            return true;
+        }
+        return old.forDb().equals(field.forDb());
     }
 
     /**
@@ -26,6 +26,8 @@ class Join<Column extends Enum<Column> & Table.Columns> {
 
     Set<Column> key;
     Table with;
+    // The last alias joined to and the join.
+    private volatile String[] joined = null;
 
     public Join(Table with, Set<Column> key) {
         this.with = with;
@@ -33,11 +35,17 @@ class Join<Column extends Enum<Column> & Table.Columns> {
     }
 
     public String join(String alias) {
-        String s = "LEFT JOIN " + with.tableName + " " + with.alias + " ON ";
+        // Almost always the same alias so remember the last one.
+        String[] last = joined;
+        if (last != null && last[0].equals(alias)) {
+            return last[1];
+        }
+        StringBuilder s = new StringBuilder("LEFT JOIN ").append(with.tableName).append(" ").append(with.alias).append(" ON ");
         Separator and = new Separator(" AND ");
         for (Column c : key) {
-            s += and.sep() + alias + "." + c.name() + " = " + with.alias + "." + c.name();
+            s.append(and.sep()).append(alias).append(".").append(c.name()).append(" = ").append(with.alias).append(".").append(c.name());
         }
-        return s;
+        joined = new String[]{alias, s.toString()};
+        return joined[1];
     }
 }
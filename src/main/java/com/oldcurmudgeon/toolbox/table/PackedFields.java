@@ -0,0 +1,399 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import com.oldcurmudgeon.toolbox.table.Field.Type;
+import com.oldcurmudgeon.toolbox.walkers.Separator;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Fields that hold their values in primitive arrays indexed by the ordinal of
+ * the column rather than as a Field object per column.
+ * <p>
+ * Numbers and Timestamps live in a long[], Booleans in a bit set and Strings
+ * and Enums in an Object[]. Which columns are present is another bit set.
+ * <p>
+ * The db form of each value is only built when it is asked for. Field objects
+ * are only built if getField is called.
+ * <p>
+ * Reading a row from a ResultSet therefore allocates next to nothing beyond
+ * what the driver itself allocates.
+ *
+ * @param <Column>
+ * @author OldCurmudgeon
+ */
+public class PackedFields<Column extends Enum<Column> & Table.Columns> extends Fields<Column> {
+    // Which columns are present - one bit per ordinal.
+    private final long[] present;
+    // Boolean values - one bit per ordinal.
+    private final long[] booleans;
+    // Integer, Long and Timestamp (millis) values.
+    private final long[] longs;
+    // String and Enum values.
+    private final Object[] objects;
+    // What type of value is held for each column.
+    private final Type[] types;
+    // Nanos of Timestamps - made when first needed.
+    private int[] nanos = null;
+    // Db form of each value - made when first needed.
+    private String[] forDb = null;
+
+    public PackedFields(Set<Column> columns) {
+        super(columns, false);
+        // The full universe so we can index by ordinal.
+        int n = columns.iterator().next().getDeclaringClass().getEnumConstants().length;
+        present = new long[(n + 63) >>> 6];
+        booleans = new long[present.length];
+        longs = new long[n];
+        objects = new Object[n];
+        types = new Type[n];
+    }
+
+    /**
+     * Take a clone of an existing set of fields.
+     *
+     * @param columns Set
+     * @param from    Fields
+     */
+    public PackedFields(Set<Column> columns, Fields<Column> from) {
+        this(columns);
+        if (from instanceof PackedFields) {
+            // Straight copy of the arrays - Strings and Enums are immutable.
+            PackedFields<Column> p = (PackedFields<Column>) from;
+            System.arraycopy(p.present, 0, present, 0, present.length);
+            System.arraycopy(p.booleans, 0, booleans, 0, booleans.length);
+            System.arraycopy(p.longs, 0, longs, 0, longs.length);
+            System.arraycopy(p.objects, 0, objects, 0, objects.length);
+            System.arraycopy(p.types, 0, types, 0, types.length);
+            if (p.nanos != null) {
+                nanos = p.nanos.clone();
+            }
+            changed.addAll(p.changed);
+        } else {
+            copy(from, Copy.Exact, null);
+        }
+    }
+
+    // Bit twiddling.
+    private static boolean bit(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    private static void bit(long[] bits, int i, boolean on) {
+        if (on) {
+            bits[i >>> 6] |= 1L << i;
+        } else {
+            bits[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    @Override
+    protected boolean hasField(Column column) {
+        return bit(present, column.ordinal());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (long p : present) {
+            if (p != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void removeField(Column column) {
+        int i = column.ordinal();
+        bit(present, i, false);
+        // Let it be collected.
+        objects[i] = null;
+        types[i] = null;
+        if (forDb != null) {
+            forDb[i] = null;
+        }
+    }
+
+    @Override
+    protected void removeFields() {
+        Arrays.fill(present, 0);
+        Arrays.fill(objects, null);
+        Arrays.fill(types, null);
+        forDb = null;
+    }
+
+    @Override
+    protected void putField(Column column, Field<Column> field) {
+        Object v = field.value();
+        switch (field.getType()) {
+            case Boolean:
+                store(column.ordinal(), Type.Boolean, (Boolean) v ? 1 : 0, 0, null);
+                break;
+
+            case Integer:
+                store(column.ordinal(), Type.Integer, (Integer) v, 0, null);
+                break;
+
+            case Long:
+                store(column.ordinal(), Type.Long, (Long) v, 0, null);
+                break;
+
+            case Timestamp:
+                Timestamp t = (Timestamp) v;
+                store(column.ordinal(), Type.Timestamp, t.getTime(), t.getNanos(), null);
+                break;
+
+            default:
+                // String and Enum.
+                store(column.ordinal(), field.getType(), 0, 0, v);
+                break;
+        }
+    }
+
+    // Store a value - no change tracking.
+    private void store(int i, Type type, long l, int n, Object o) {
+        bit(present, i, true);
+        types[i] = type;
+        objects[i] = o;
+        if (type == Type.Boolean) {
+            bit(booleans, i, l != 0);
+        } else {
+            longs[i] = l;
+        }
+        if (type == Type.Timestamp) {
+            if (nanos == null) {
+                nanos = new int[longs.length];
+            }
+            nanos[i] = n;
+        }
+        if (forDb != null) {
+            forDb[i] = null;
+        }
+    }
+
+    // Store a value with change tracking.
+    private void change(Column column, Type type, long l, int n, Object o) {
+        int i = column.ordinal();
+        if (!bit(present, i) || !same(i, type, l, n, o)) {
+            changed.add(column);
+        }
+        store(i, type, l, n, o);
+    }
+
+    // Is this the same as what is there now.
+    private boolean same(int i, Type type, long l, int n, Object o) {
+        if (types[i] != type) {
+            // Different types - fall back to comparing the db form.
+            return forDb(i).equals(materialise(type, l, n, o).forDb());
+        }
+        switch (type) {
+            case Boolean:
+                return bit(booleans, i) == (l != 0);
+
+            case Timestamp:
+                return longs[i] == l && nanos[i] == n;
+
+            case Integer:
+            case Long:
+                return longs[i] == l;
+
+            default:
+                return o.equals(objects[i]);
+        }
+    }
+
+    @Override
+    protected boolean sameForDb(Column column, Field<Column> field) {
+        return forDb(column.ordinal()).equals(field.forDb());
+    }
+
+    @Override
+    public Field<Column> getField(Column column) {
+        int i = column.ordinal();
+        return bit(present, i) ? materialise(i) : null;
+    }
+
+    // Make a Field out of what we hold.
+    private Field<Column> materialise(int i) {
+        Type type = types[i];
+        long l = type == Type.Boolean ? (bit(booleans, i) ? 1 : 0) : longs[i];
+        return materialise(type, l, type == Type.Timestamp ? nanos[i] : 0, objects[i]);
+    }
+
+    // Booleans are 0 or 1 in l.
+    private Field<Column> materialise(Type type, long l, int n, Object o) {
+        switch (type) {
+            case Boolean:
+                return new Field<>(l != 0);
+
+            case Integer:
+                return new Field<>((int) l);
+
+            case Long:
+                return new Field<>(l);
+
+            case Timestamp:
+                Timestamp t = new Timestamp(l);
+                t.setNanos(n);
+                return new Field<>(t);
+
+            case Enum:
+                if (o instanceof Enum) {
+                    return new Field<>((Enum) o);
+                }
+                // Read from the db as a String.
+                return new Field<>((String) o);
+
+            default:
+                return new Field<>((String) o);
+        }
+    }
+
+    @Override
+    protected Object getValue(Column column) {
+        int i = column.ordinal();
+        if (!bit(present, i)) {
+            return null;
+        }
+        switch (types[i]) {
+            case Boolean:
+                return bit(booleans, i);
+
+            case Integer:
+                return (int) longs[i];
+
+            case Long:
+                return longs[i];
+
+            case Timestamp:
+                // Timestamps are mutable so always a new one.
+                Timestamp t = new Timestamp(longs[i]);
+                t.setNanos(nanos[i]);
+                return t;
+
+            default:
+                return objects[i];
+        }
+    }
+
+    @Override
+    public String getForDb(Column column) {
+        return forDb(column.ordinal());
+    }
+
+    // Build the db form only when asked for.
+    private String forDb(int i) {
+        if (forDb == null) {
+            forDb = new String[longs.length];
+        }
+        String s = forDb[i];
+        if (s == null) {
+            s = forDb[i] = materialise(i).forDb();
+        }
+        return s;
+    }
+
+    @Override
+    public void setField(Column column, String s) {
+        change(column, Type.String, 0, 0, s);
+    }
+
+    @Override
+    public void setField(Column column, Boolean b) {
+        change(column, Type.Boolean, b ? 1 : 0, 0, null);
+    }
+
+    @Override
+    public void setField(Column column, Enum e) {
+        change(column, Type.Enum, 0, 0, e);
+    }
+
+    @Override
+    public void setField(Column column, Timestamp ts) {
+        change(column, Type.Timestamp, ts.getTime(), ts.getNanos(), null);
+    }
+
+    @Override
+    public void setField(Column column, Long l) {
+        change(column, Type.Long, l, 0, null);
+    }
+
+    /**
+     * Read straight from the ResultSet into the arrays without making a Field.
+     *
+     * @param column Column
+     * @param rs     ResultSet
+     * @param index  int - of the column in the ResultSet.
+     * @throws SQLException
+     */
+    @Override
+    public void setField(Column column, ResultSet rs, int index) throws SQLException {
+        switch (column.getType()) {
+            case Boolean:
+                boolean b = rs.getBoolean(index);
+                set(column, rs.wasNull(), Type.Boolean, b ? 1 : 0, 0, null);
+                break;
+
+            case Integer:
+                int i = rs.getInt(index);
+                set(column, rs.wasNull(), Type.Integer, i, 0, null);
+                break;
+
+            case Long:
+                long l = rs.getLong(index);
+                set(column, rs.wasNull(), Type.Long, l, 0, null);
+                break;
+
+            case Timestamp:
+                Timestamp t = rs.getTimestamp(index);
+                set(column, t == null, Type.Timestamp, t != null ? t.getTime() : 0, t != null ? t.getNanos() : 0, null);
+                break;
+
+            default:
+                // Strings and Enums are read as Strings.
+                String s = rs.getString(index);
+                set(column, s == null, Type.String, 0, 0, s != null ? s.trim() : null);
+                break;
+        }
+    }
+
+    // Set it or remove it if it was null in db.
+    private void set(Column column, boolean wasNull, Type type, long l, int n, Object o) {
+        if (!wasNull) {
+            change(column, type, l, n, o);
+        } else if (hasField(column)) {
+            removeField(column);
+            changed.add(column);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("{");
+        Separator comma = new Separator(", ");
+        for (Column c : columns) {
+            if (hasField(c)) {
+                s.append(comma.sep()).append(c).append("=").append(getForDb(c));
+            }
+        }
+        return s.append("}\tChanged: ").append(changed).toString();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import com.oldcurmudgeon.toolbox.containers.Params;
+import com.oldcurmudgeon.toolbox.containers.Stats;
+import com.oldcurmudgeon.toolbox.containers.Stats.HistogramStat;
+import com.oldcurmudgeon.toolbox.containers.Stats.NumberStat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and row counts of the queries run against one table - shared by
+ * all Table objects with the same table name.
+ * <p>
+ * Each kind of query has its count, rows, errors and a latency histogram in
+ * microseconds. Queries slower than DbSlowQueryMillis are logged and the most
+ * recent are kept.
+ * <p>
+ * Registered with JMX as com.oldcurmudgeon.toolbox.table:type=Table,name=...
+ *
+ * @author OldCurmudgeon
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+    // A logger.
+    private static final Logger log = LoggerFactory.getLogger(QueryMetrics.class);
+    // How many slow queries to remember.
+    private static final int SLOW_QUERIES = 32;
+    // One per table name.
+    private static final Map<String, QueryMetrics> tables = new ConcurrentHashMap<>();
+
+    /**
+     * The kinds of query - by their first word.
+     */
+    public enum Kind {
+        // Before Read as it starts the same.
+        Count("SELECT COUNT("),
+        Read("SELECT"),
+        Insert("INSERT"),
+        Update("UPDATE"),
+        Delete("DELETE"),
+        Upsert("MERGE"),
+        // Everything else.
+        Other("");
+
+        final String starts;
+
+        Kind(String starts) {
+            this.starts = starts;
+        }
+
+        // Which kind is it.
+        static Kind of(String sql) {
+            for (Kind k : values()) {
+                if (sql.regionMatches(true, 0, k.starts, 0, k.starts.length())) {
+                    return k;
+                }
+            }
+            return Other;
+        }
+
+    }
+
+    /**
+     * The stats for one kind.
+     */
+    public static class Op {
+        public final NumberStat calls;
+        public final NumberStat rows;
+        public final NumberStat errors;
+        public final HistogramStat micros;
+        public final Stats stats;
+
+        Op(Kind kind) {
+            calls = new NumberStat(kind + "s");
+            rows = new NumberStat(kind + "Rows");
+            errors = new NumberStat(kind + "Errors");
+            micros = new HistogramStat(kind + "Micros");
+            stats = new Stats(calls, rows, errors, micros);
+        }
+
+        @Override
+        public String toString() {
+            return stats.toString();
+        }
+
+    }
+
+    // The name of the table.
+    private final String tableName;
+    // By kind.
+    private final Map<Kind, Op> ops = new EnumMap<>(Kind.class);
+    // What is slow.
+    private volatile long slowNanos;
+    // The most recent slow ones - newest first.
+    private final ArrayDeque<String> slow = new ArrayDeque<>();
+
+    // Observable.
+    public final Stats stats = new Stats();
+
+    private QueryMetrics(String tableName) {
+        this.tableName = tableName;
+        for (Kind k : Kind.values()) {
+            Op op = new Op(k);
+            ops.put(k, op);
+            stats.add(op.calls);
+            stats.add(op.rows);
+            stats.add(op.errors);
+            stats.add(op.micros);
+        }
+        setSlowMillis(Long.parseLong(Params.getParams().get("DbSlowQueryMillis", "1000")));
+    }
+
+    /**
+     * The metrics for the table - made and registered with JMX the first time.
+     *
+     * @param tableName String
+     * @return QueryMetrics
+     */
+    public static QueryMetrics forTable(String tableName) {
+        return tables.computeIfAbsent(tableName, name -> {
+            QueryMetrics m = new QueryMetrics(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(m,
+                        new ObjectName("com.oldcurmudgeon.toolbox.table:type=Table,name=" + ObjectName.quote(name)));
+            } catch (Exception ex) {
+                // Still works without JMX.
+                log.debug("Failed to register " + name + " with JMX", ex);
+            }
+            return m;
+        });
+    }
+
+    /**
+     * A query has been run.
+     *
+     * @param sql   String
+     * @param start long - System.nanoTime() when it started.
+     * @param rows  long - rows read or affected, negative if it failed.
+     */
+    public void record(String sql, long start, long rows) {
+        long nanos = System.nanoTime() - start;
+        Op op = ops.get(Kind.of(sql));
+        op.calls.inc();
+        op.micros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        if (rows >= 0) {
+            op.rows.add(rows);
+        } else {
+            op.errors.inc();
+        }
+        if (nanos > slowNanos) {
+            slow(sql, nanos);
+        }
+    }
+
+    /**
+     * Rows delivered after the query itself was recorded - e.g. by a cursor.
+     *
+     * @param kind Kind
+     * @param rows long
+     */
+    public void rows(Kind kind, long rows) {
+        ops.get(kind).rows.add(rows);
+    }
+
+    public Op get(Kind kind) {
+        return ops.get(kind);
+    }
+
+    private void slow(String sql, long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        log.warn("Slow query on " + tableName + " " + millis + "ms: " + sql);
+        String s = new Timestamp(System.currentTimeMillis()) + " " + millis + "ms: " + sql;
+        synchronized (slow) {
+            slow.addFirst(s);
+            if (slow.size() > SLOW_QUERIES) {
+                slow.removeLast();
+            }
+        }
+    }
+
+    @Override
+    public String getTableName() {
+        return tableName;
+    }
+
+    @Override
+    public long getQueries() {
+        long n = 0;
+        for (Op op : ops.values()) {
+            n += op.calls.total();
+        }
+        return n;
+    }
+
+    @Override
+    public long getRows() {
+        long n = 0;
+        for (Op op : ops.values()) {
+            n += op.rows.total();
+        }
+        return n;
+    }
+
+    @Override
+    public long getErrors() {
+        long n = 0;
+        for (Op op : ops.values()) {
+            n += op.errors.total();
+        }
+        return n;
+    }
+
+    @Override
+    public long getTotalMicros() {
+        long n = 0;
+        for (Op op : ops.values()) {
+            n += op.micros.getSum();
+        }
+        return n;
+    }
+
+    @Override
+    public String[] getOperations() {
+        String[] s = new String[ops.size()];
+        int i = 0;
+        for (Op op : ops.values()) {
+            s[i++] = op.toString();
+        }
+        return s;
+    }
+
+    @Override
+    public String[] getSlowQueries() {
+        synchronized (slow) {
+            return slow.toArray(new String[slow.size()]);
+        }
+    }
+
+    @Override
+    public long getSlowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowNanos);
+    }
+
+    @Override
+    public final void setSlowMillis(long millis) {
+        slowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public void reset() {
+        for (Op op : ops.values()) {
+            op.calls.clr();
+            op.rows.clr();
+            op.errors.clr();
+            op.micros.clr();
+        }
+        synchronized (slow) {
+            slow.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueryMetrics(" + tableName + "): " + stats;
+    }
+
+}
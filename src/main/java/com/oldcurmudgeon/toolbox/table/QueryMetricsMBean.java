@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+/**
+ * What QueryMetrics shows over JMX.
+ *
+ * @author OldCurmudgeon
+ */
+public interface QueryMetricsMBean {
+
+    public String getTableName();
+
+    // Totals over all kinds of query.
+    public long getQueries();
+
+    public long getRows();
+
+    public long getErrors();
+
+    // Microseconds.
+    public long getTotalMicros();
+
+    // One line per kind of query with calls, rows and latencies.
+    public String[] getOperations();
+
+    // The most recent slow ones.
+    public String[] getSlowQueries();
+
+    public long getSlowMillis();
+
+    public void setSlowMillis(long millis);
+
+    public void reset();
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import com.oldcurmudgeon.toolbox.containers.Stats;
+import com.oldcurmudgeon.toolbox.containers.Stats.NumberStat;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A cache of records read from a Table, keyed by the values of the key
+ * columns they were read by.
+ * <p>
+ * Bounded in size with either LRU or (approximate) LFU eviction and an
+ * optional time-to-live.
+ * <p>
+ * The Table invalidates it whenever it writes. A record read from the
+ * database is only put if nothing has been invalidated since the read began -
+ * take the generation before reading.
+ *
+ * @param <Column>
+ * @author OldCurmudgeon
+ */
+public class RowCache<Column extends Enum<Column> & Table.Columns> {
+
+    /**
+     * How to choose what to throw out when full.
+     */
+    public enum Policy {
+        // Least recently used.
+        LRU,
+        // Least frequently used - of the oldest few.
+        LFU
+    }
+
+    // How many LFU candidates to look at - the oldest.
+    private static final int LFU_SAMPLE = 8;
+    // Biggest I can get.
+    private final int capacity;
+    // How long an entry lives - 0 means forever.
+    private final long ttlMillis;
+    private final Policy policy;
+    // The entries - in access order for LRU, insertion order for LFU.
+    private final LinkedHashMap<Key, Entry<Column>> entries;
+    // All key sets that have been used.
+    private final Set<Set<Column>> keySets = new HashSet<>();
+    // Goes up on every invalidation.
+    private long generation = 0;
+
+    // Observable.
+    public final NumberStat hits = new NumberStat("Hits");
+    public final NumberStat misses = new NumberStat("Misses");
+    public final NumberStat evictions = new NumberStat("Evictions");
+    public final NumberStat expired = new NumberStat("Expired");
+    public final NumberStat invalidations = new NumberStat("Invalidations");
+    public final Stats stats = new Stats(hits, misses, evictions, expired, invalidations);
+
+    public RowCache(int capacity, long ttlMillis, Policy policy) {
+        // Sanity checks.
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        }
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.policy = policy;
+        entries = new LinkedHashMap<>(16, 0.75f, policy == Policy.LRU);
+    }
+
+    /**
+     * Find the record with the values of the key in these fields.
+     *
+     * @param key    Set
+     * @param fields Fields - holding the key values.
+     * @return Fields - the cached record, null if not there. Do not change it.
+     */
+    public synchronized Fields<Column> get(Set<Column> key, Fields<Column> fields) {
+        Key k = key(key, fields);
+        Entry<Column> e = k != null ? entries.get(k) : null;
+        if (e != null && ttlMillis > 0 && System.currentTimeMillis() > e.expires) {
+            entries.remove(k);
+            expired.inc();
+            e = null;
+        }
+        if (e == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        e.uses += 1;
+        return e.record;
+    }
+
+    /**
+     * Which invalidation we are up to.
+     *
+     * @return long
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Remember the record read by the key.
+     * <p>
+     * Unless something was invalidated after the read began - it could be
+     * stale.
+     *
+     * @param key        Set
+     * @param record     Fields - must not be changed once here.
+     * @param generation long - from generation() before the read.
+     */
+    public synchronized void put(Set<Column> key, Fields<Column> record, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        Key k = key(key, record);
+        if (k != null) {
+            keySets.add(key);
+            entries.put(k, new Entry<>(record, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0));
+            while (entries.size() > capacity) {
+                evict();
+            }
+        }
+    }
+
+    /**
+     * A write has been made by this key - drop anything it could have changed.
+     * <p>
+     * Entries read by the same key are dropped individually. Entries read by
+     * other keys could be the same record so they all go.
+     *
+     * @param key    Set
+     * @param fields Fields - holding the key values.
+     */
+    public synchronized void invalidate(Set<Column> key, Fields<Column> fields) {
+        // Even if empty - a read in progress could be about to put it.
+        generation += 1;
+        if (entries.isEmpty()) {
+            return;
+        }
+        invalidations.inc();
+        Key k = key != null ? key(key, fields) : null;
+        if (k == null) {
+            clear();
+        } else if (keySets.size() == 1 && keySets.contains(key)) {
+            entries.remove(k);
+        } else {
+            for (Iterator<Key> i = entries.keySet().iterator(); i.hasNext(); ) {
+                Key it = i.next();
+                if (!it.columns.equals(key) || it.equals(k)) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A new record has been inserted - drop anything read by its keys.
+     * <p>
+     * Misses are not cached but a new record can make a unique key ambiguous.
+     *
+     * @param record Fields
+     */
+    public synchronized void inserted(Fields<Column> record) {
+        generation += 1;
+        for (Set<Column> key : keySets) {
+            Key k = key(key, record);
+            if (k == null) {
+                // Don't know its key - can't tell what it affects.
+                clear();
+                return;
+            }
+            entries.remove(k);
+        }
+    }
+
+    public synchronized void clear() {
+        generation += 1;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Throw one out.
+    private void evict() {
+        Iterator<Map.Entry<Key, Entry<Column>>> i = entries.entrySet().iterator();
+        Key victim = null;
+        if (policy == Policy.LRU) {
+            // Eldest is least recently used.
+            victim = i.next().getKey();
+        } else {
+            // Least used of the oldest few.
+            int least = Integer.MAX_VALUE;
+            for (int n = 0; n < LFU_SAMPLE && i.hasNext(); n++) {
+                Map.Entry<Key, Entry<Column>> e = i.next();
+                if (e.getValue().uses < least) {
+                    least = e.getValue().uses;
+                    victim = e.getKey();
+                }
+            }
+        }
+        entries.remove(victim);
+        evictions.inc();
+    }
+
+    // The key of the record in the cache - null if any key field is missing.
+    private Key key(Set<Column> key, Fields<Column> fields) {
+        StringBuilder values = new StringBuilder();
+        for (Column c : key) {
+            Field<Column> f = fields.getField(c);
+            if (f == null) {
+                return null;
+            }
+            values.append(f.forDb()).append('\0');
+        }
+        return new Key(key, values.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "RowCache(" + policy + " " + size() + "/" + capacity + "): " + stats;
+    }
+
+    /**
+     * Which key columns and the values they had.
+     */
+    private static final class Key {
+        final Set<?> columns;
+        final String values;
+
+        Key(Set<?> columns, String values) {
+            this.columns = columns;
+            this.values = values;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key it = (Key) o;
+            return values.equals(it.values) && columns.equals(it.columns);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(columns, values);
+        }
+    }
+
+    private static final class Entry<Column extends Enum<Column> & Table.Columns> {
+        final Fields<Column> record;
+        final long expires;
+        int uses = 0;
+
+        Entry(Fields<Column> record, long expires) {
+            this.record = record;
+            this.expires = expires;
+        }
+    }
+}
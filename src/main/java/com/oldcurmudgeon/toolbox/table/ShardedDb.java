@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import com.oldcurmudgeon.toolbox.containers.Params;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Several databases, each holding the records for some of the keys.
+ * <p>
+ * A key is routed to its database either by consistent hashing - adding a
+ * shard only moves the keys that now belong to it - or by a range map where
+ * each database holds the keys from its starting key up to the next.
+ * <p>
+ * See ShardedTable to route and fan out the operations of a Table.
+ *
+ * @author OldCurmudgeon
+ */
+public class ShardedDb {
+    // Points on the hash ring - null if by range.
+    private final NavigableMap<Long, Db> ring;
+    // Start of each range - null if hashed.
+    private final NavigableMap<String, Db> ranges;
+    // All of them, each once.
+    private final List<Db> shards;
+
+    private ShardedDb(NavigableMap<Long, Db> ring, NavigableMap<String, Db> ranges, List<Db> shards) {
+        this.ring = ring;
+        this.ranges = ranges;
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Route by consistent hashing.
+     *
+     * @param shards   List - each must have a name.
+     * @param replicas int - points on the ring per shard, more spreads the keys more evenly.
+     * @return ShardedDb
+     */
+    public static ShardedDb hashed(List<Db> shards, int replicas) {
+        // Sanity checks.
+        if (shards.isEmpty() || replicas <= 0) {
+            throw new IllegalArgumentException("Need at least one shard and replica.");
+        }
+        NavigableMap<Long, Db> ring = new TreeMap<>();
+        for (Db db : shards) {
+            if (db.getName() == null) {
+                throw new IllegalArgumentException("Shards must be named.");
+            }
+            // Where it is depends only on its name so they all agree.
+            for (int i = 0; i < replicas; i++) {
+                ring.put(hash(db.getName() + "#" + i), db);
+            }
+        }
+        return new ShardedDb(ring, null, new ArrayList<>(new LinkedHashSet<>(shards)));
+    }
+
+    /**
+     * Route by range.
+     *
+     * @param starts Map - from the first key of each range to its database.
+     *               Keys before the first go to the first.
+     * @return ShardedDb
+     */
+    public static ShardedDb ranged(Map<String, Db> starts) {
+        if (starts.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one shard.");
+        }
+        NavigableMap<String, Db> ranges = new TreeMap<>(starts);
+        return new ShardedDb(null, ranges, new ArrayList<>(new LinkedHashSet<>(ranges.values())));
+    }
+
+    /**
+     * Hashed over the named Dbs in the DbShards param (comma separated) with
+     * DbShardReplicas points each.
+     *
+     * @return ShardedDb
+     * @throws SQLException
+     * @throws ClassNotFoundException
+     */
+    public static ShardedDb fromParams() throws SQLException, ClassNotFoundException {
+        Params params = Params.getParams();
+        List<Db> shards = new ArrayList<>();
+        for (String name : params.get("DbShards", "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                shards.add(Db.getDb(name.trim()));
+            }
+        }
+        return hashed(shards, Integer.parseInt(params.get("DbShardReplicas", "100")));
+    }
+
+    /**
+     * Which database holds the key.
+     *
+     * @param key String
+     * @return Db
+     */
+    public Db route(String key) {
+        if (ring != null) {
+            // The next point round the ring.
+            Map.Entry<Long, Db> e = ring.ceilingEntry(hash(key));
+            return e != null ? e.getValue() : ring.firstEntry().getValue();
+        }
+        Map.Entry<String, Db> e = ranges.floorEntry(key);
+        return e != null ? e.getValue() : ranges.firstEntry().getValue();
+    }
+
+    public List<Db> getShards() {
+        return shards;
+    }
+
+    public void close() throws SQLException {
+        SQLException failed = null;
+        for (Db db : shards) {
+            try {
+                db.close();
+            } catch (SQLException ex) {
+                if (failed == null) {
+                    failed = ex;
+                } else {
+                    // Keep them all.
+                    failed.addSuppressed(ex);
+                }
+            }
+        }
+        if (failed != null) {
+            throw failed;
+        }
+    }
+
+    // FNV-1a then a mix so nearby keys land far apart.
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    @Override
+    public String toString() {
+        List<String> names = new ArrayList<>();
+        for (Db db : shards) {
+            names.add(db.getName());
+        }
+        return "ShardedDb(" + (ring != null ? "hashed" : "ranged") + " " + names + ")";
+    }
+}
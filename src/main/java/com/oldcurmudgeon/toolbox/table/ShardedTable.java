@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * One Table on each of the databases of a ShardedDb.
+ * <p>
+ * Operations with a value for the shard column go to the one table that holds
+ * it. Reads without one go to all of them in parallel and the results are
+ * merged.
+ * <p>
+ * E.G. new ShardedTable<>(shards, PedID.Column.SerialNumber, db -> new PedTable(db))
+ *
+ * @param <Column> The columns of the table.
+ * @param <T>      The type of the tables.
+ * @author OldCurmudgeon
+ */
+public class ShardedTable<Column extends Enum<Column> & Table.Columns, T extends Table<Column>> {
+    // Where they are.
+    private final ShardedDb shards;
+    // The column that decides.
+    private final Column by;
+    // The table on each shard.
+    private final Map<Db, T> tables = new LinkedHashMap<>();
+
+    /**
+     * Makes the table on each shard.
+     *
+     * @param shards ShardedDb
+     * @param by     Column - its value decides the shard.
+     * @param make   Function - makes the table on a Db.
+     */
+    public ShardedTable(ShardedDb shards, Column by, Function<Db, T> make) {
+        this.shards = shards;
+        this.by = by;
+        for (Db db : shards.getShards()) {
+            tables.put(db, make.apply(db));
+        }
+    }
+
+    /**
+     * The table holding records with this value in the shard column.
+     *
+     * @param key Object
+     * @return T
+     */
+    public T route(Object key) {
+        return tables.get(shards.route(key.toString()));
+    }
+
+    /**
+     * The table holding this record.
+     *
+     * @param from Fields - must have a value in the shard column.
+     * @return T
+     */
+    public T route(Fields<Column> from) {
+        Field<Column> f = from.getField(by);
+        if (f == null) {
+            throw new IllegalArgumentException("No value for " + by + " to route by.");
+        }
+        return route(f.value());
+    }
+
+    public Collection<T> tables() {
+        return Collections.unmodifiableCollection(tables.values());
+    }
+
+    /**
+     * Reads all records matching the key.
+     * <p>
+     * If the key includes the shard column only that shard is read, otherwise
+     * all are read in parallel.
+     *
+     * @param from    Fields - holding the key values.
+     * @param columns Set
+     * @param key     Set - null means all records.
+     * @return CompletableFuture
+     */
+    public CompletableFuture<ArrayList<Fields<Column>>> readRecordsAsync(Fields<Column> from, Set<Column> columns, Set<Column> key) {
+        if (key != null && key.contains(by)) {
+            return route(from).readRecordsAsync(from, columns, key);
+        }
+        List<CompletableFuture<ArrayList<Fields<Column>>>> all = new ArrayList<>();
+        for (T t : tables.values()) {
+            all.add(t.readRecordsAsync(from, columns, key));
+        }
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()])).thenApply(v -> {
+            ArrayList<Fields<Column>> merged = new ArrayList<>();
+            for (CompletableFuture<ArrayList<Fields<Column>>> f : all) {
+                merged.addAll(f.join());
+            }
+            return merged;
+        });
+    }
+
+    /**
+     * Reads all records matching the key - see readRecordsAsync.
+     *
+     * @param from    Fields - holding the key values.
+     * @param columns Set
+     * @param key     Set - null means all records.
+     * @return ArrayList
+     * @throws SQLException
+     */
+    public ArrayList<Fields<Column>> readRecords(Fields<Column> from, Set<Column> columns, Set<Column> key) throws SQLException {
+        if (key != null && key.contains(by)) {
+            return route(from).readRecords(from, columns, key);
+        }
+        Map<T, Callable<ArrayList<Fields<Column>>>> work = new LinkedHashMap<>();
+        for (T t : tables.values()) {
+            work.put(t, () -> t.readRecords(from, columns, key));
+        }
+        ArrayList<Fields<Column>> merged = new ArrayList<>();
+        for (ArrayList<Fields<Column>> some : all(work)) {
+            merged.addAll(some);
+        }
+        return merged;
+    }
+
+    /**
+     * Reads the records of many ids.
+     * <p>
+     * The ids are grouped by shard and each group is read in parallel on its
+     * own shard. The ids must include the shard column.
+     *
+     * @param key Set
+     * @param ids Collection
+     * @return Map - from each of the ids to its record. Those with no (unique) record are missing.
+     * @throws SQLException
+     */
+    public Map<ID, Fields<Column>> readRecords(Set<Column> key, Collection<? extends ID> ids) throws SQLException {
+        // Group them.
+        Map<T, List<ID>> groups = new LinkedHashMap<>();
+        for (ID id : ids) {
+            // Routed just as the record would be.
+            @SuppressWarnings("unchecked")
+            Fields<Column> fields = id.getFields();
+            Fields<Column> k = new Fields<>(EnumSet.allOf(by.getDeclaringClass()));
+            k.copyCorresponding(fields);
+            groups.computeIfAbsent(route(k), t -> new ArrayList<>()).add(id);
+        }
+        // Read each group on its own shard.
+        Map<T, Callable<Map<ID, Fields<Column>>>> work = new LinkedHashMap<>();
+        for (Map.Entry<T, List<ID>> e : groups.entrySet()) {
+            T t = e.getKey();
+            List<ID> group = e.getValue();
+            work.put(t, () -> t.readRecords(key, group));
+        }
+        Map<ID, Fields<Column>> red = new LinkedHashMap<>();
+        for (Map<ID, Fields<Column>> some : all(work)) {
+            red.putAll(some);
+        }
+        return red;
+    }
+
+    // Run each on its table's executor and wait for them all. Any not started
+    // by the time they are needed are run here - this could be a thread of one
+    // of those executors, waiting for work queued behind itself. Those on a Db
+    // this thread has a transaction on are always run here - on its connection.
+    private <R> List<R> all(Map<T, Callable<R>> work) throws SQLException {
+        // Set when one fails - the rest needn't bother.
+        AtomicBoolean failed = new AtomicBoolean();
+        List<FutureTask<R>> tasks = new ArrayList<>();
+        for (Map.Entry<T, Callable<R>> e : work.entrySet()) {
+            Callable<R> w = e.getValue();
+            FutureTask<R> task = new FutureTask<>(() -> failed.get() ? null : w.call());
+            tasks.add(task);
+            if (e.getKey().db.isInTransaction()) {
+                // It'll be done here.
+                continue;
+            }
+            try {
+                e.getKey().getExecutor().execute(task);
+            } catch (RejectedExecutionException ex) {
+                // It'll be done here.
+            }
+        }
+        List<R> results = new ArrayList<>(tasks.size());
+        boolean done = false;
+        try {
+            for (FutureTask<R> task : tasks) {
+                // Not started - do it here.
+                task.run();
+                results.add(Table.get(task));
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                failed.set(true);
+                // Don't leave them running behind our back.
+                for (FutureTask<R> task : tasks) {
+                    task.run();
+                    try {
+                        task.get();
+                    } catch (ExecutionException ex) {
+                        // Already failing.
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Streams every record of every shard - in parallel, in no particular
+     * order.
+     * <p>
+     * Each shard is read on its own connection. ALWAYS close it.
+     *
+     * @param columns Set
+     * @return Stream
+     */
+    public Stream<Fields<Column>> streamAll(Set<Column> columns) {
+        return new ArrayList<>(tables.values()).parallelStream().flatMap(t -> {
+            try {
+                return t.streamRecords(columns, null, 0, false);
+            } catch (SQLException ex) {
+                throw new CompletionException(ex);
+            }
+        });
+    }
+
+    /**
+     * Inserts the record into its shard.
+     *
+     * @param from Fields
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Void> insertRecordAsync(Fields<Column> from) {
+        return route(from).insertRecordAsync(from);
+    }
+
+    /**
+     * Updates the record in its shard.
+     *
+     * @param from Fields
+     * @param key  Set - must include the shard column.
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Integer> updateRecordAsync(Fields<Column> from, Set<Column> key) {
+        return route(from).updateRecordAsync(from, key);
+    }
+
+    /**
+     * Deletes the record from its shard.
+     *
+     * @param from Fields - holding the key values.
+     * @param key  Set - must include the shard column.
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Integer> deleteRecordAsync(Fields<Column> from, Set<Column> key) {
+        return route(from).deleteRecordAsync(from, key);
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedTable(" + by + " over " + shards + ")";
+    }
+}
@@ -15,19 +15,59 @@
  */
 package com.oldcurmudgeon.toolbox.table;
 
+import com.oldcurmudgeon.toolbox.containers.Stats;
+import com.oldcurmudgeon.toolbox.containers.Stats.NumberStat;
 import com.oldcurmudgeon.toolbox.table.Field.Type;
 import com.oldcurmudgeon.toolbox.table.Fields.Copy;
+import com.oldcurmudgeon.toolbox.walkers.Iterables;
 import com.oldcurmudgeon.toolbox.walkers.Separator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>Title: Table</p>
@@ -89,10 +129,32 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
     static final String CR = "\r\n\t";
     // Emitted between fields.
     static final String COMMA = "," + CR;
+    // Marks a parameter slot while a query is built - never in real sql so a ? there is safe.
+    static final String SLOT = "\0";
     // Natural joins of this table.
     ArrayList<Join> joins = new ArrayList<>();
     // Alias name for the table.
     String alias;
+    // Use parameterised queries and prepared statements.
+    private volatile boolean prepared = false;
+    // Read rows into PackedFields.
+    private volatile boolean packed = false;
+    // Records read by key - null if not caching.
+    private volatile RowCache<Column> cache = null;
+    // Buffered updates - null if updating immediately.
+    private volatile WriteBehind writeBehind = null;
+    // Parameterised queries already built - by their shape.
+    private final Map<Shape, Parameterised<Column>> parameterised = new ConcurrentHashMap<>();
+    // Counts everything.
+    private final String countAll;
+    // The joins - built when first needed.
+    private volatile String joined = null;
+    // Runs the async operations - null means use the Db's.
+    private volatile Executor executor = null;
+    // All of my columns in the order they are selected.
+    private final List<Column> allColumns;
+    // How long everything takes - shared by all tables of this name.
+    private final QueryMetrics metrics;
 
     /**
      * The base interface for all Column enums.
@@ -150,6 +212,9 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
         this.tableName = tableName;
         this.columns = columns;
         this.alias = alias;
+        countAll = "SELECT COUNT(*) FROM " + tableName;
+        allColumns = Collections.unmodifiableList(new ArrayList<>(columns));
+        metrics = QueryMetrics.forTable(tableName);
         // One set of fields.
         fields = new Fields<>(columns);
     }
@@ -180,11 +245,11 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
             Field<Column> field = fields.getField(col);
             if (!skipNulls) {
                 // Always emit something.
-                flds = flds.append(comma.sep()).append(field != null ? field.forDb() : "<null>");
+                flds = flds.append(comma.sep()).append(field != null ? literal(field) : "<null>");
             } else {
                 // Only emit non-null fields.
                 if (field != null) {
-                    flds = flds.append(comma.sep()).append(field.forDb());
+                    flds = flds.append(comma.sep()).append(literal(field));
                 }
             }
         }
@@ -291,17 +356,46 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @param skipNulls
      * @return
      */
-    private void getQueryResults(String query, ArrayList<Fields<Column>> records, Set<Column> avoid) throws SQLException {
+    private void getQueryResults(String query, List<Column> selected, ArrayList<Fields<Column>> records, Set<Column> avoid) throws SQLException {
         logSql(query);
         Statement s = db.getStatement();
+        long start = System.nanoTime();
+        long rows = -1;
         try (ResultSet rs = s.executeQuery(query)) {
+            int before = records.size();
             while (rs.next()) {
-                Fields<Column> newFields = new Fields<>(columns, fields);
-                readFields(rs, newFields, avoid);
+                Fields<Column> newFields = newFields(fields);
+                readFields(rs, newFields, selected, avoid);
                 records.add(newFields);
             }
+            rows = records.size() - before;
+        } finally {
+            metrics.record(query, start, rows);
+            db.releaseStatement(s, rows < 0);
+        }
+    }
+
+    /**
+     * As above but runs a parameterised query with values bound from the
+     * offered fields which are also the template for each record.
+     */
+    private void getQueryResults(Parameterised<Column> query, Fields<Column> from, ArrayList<Fields<Column>> records, Set<Column> avoid) throws SQLException {
+        logSql(query.sql);
+        PreparedStatement ps = bind(query, from);
+        long start = System.nanoTime();
+        long rows = -1;
+        try (ResultSet rs = ps.executeQuery()) {
+            int before = records.size();
+            while (rs.next()) {
+                Fields<Column> newFields = newFields(from);
+                readFields(rs, newFields, query.selected, avoid);
+                records.add(newFields);
+            }
+            rows = records.size() - before;
+        } finally {
+            metrics.record(query.sql, start, rows);
+            db.releaseStatement(ps, rows < 0);
         }
-        db.releaseStatement(s);
     }
 
     /**
@@ -312,25 +406,33 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @return the query.
      */
     private String readQuery(Set<Column> columns, Set<Column> key) {
-        String query = "SELECT " + getColumns(columns, false)
-                + CR + "FROM " + tableName + " " + alias + getJoins();
-        if (key != null) {
-            query += CR + "WHERE " + keyValues(key);
-        }
-        return query;
+        return readQuery(columns, key, null, null);
+    }
+
+    /**
+     * As above but the orKey is optional and the key values go into parameter
+     * slots if slots is not null.
+     *
+     * @return the query.
+     */
+    private String readQuery(Set<Column> columns, Set<Column> key, Set<Column> orKey, List<Column> slots) {
+        return readQuery(columns, key, orKey, slots, true);
     }
 
     /**
-     * As above but with two alternate keys.
+     * As above but the joined tables' columns are only selected if addJoins.
      *
      * @return the query.
      */
-    private String readQuery(Set<Column> columns, Set<Column> key, Set<Column> orKey) {
-        String query = "SELECT " + getColumns(columns, false)
-                + CR + "FROM " + tableName + " " + alias
-                + getJoins()
-                + CR + "WHERE (" + keyValues(key) + ") "
-                + CR + "OR ( " + keyValues(orKey) + ")";
+    private String readQuery(Set<Column> columns, Set<Column> key, Set<Column> orKey, List<Column> slots, boolean addJoins) {
+        String query = "SELECT " + getColumns(columns, false, addJoins)
+                + CR + "FROM " + tableName + " " + alias + getJoins();
+        if (orKey != null) {
+            query += CR + "WHERE (" + keyValues(key, true, slots) + ") "
+                    + CR + "OR ( " + keyValues(orKey, true, slots) + ")";
+        } else if (key != null) {
+            query += CR + "WHERE " + keyValues(key, true, slots);
+        }
         return query;
     }
 
@@ -340,11 +442,15 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @return String
      */
     private String getJoins() {
-        String join = "";
-        if (joins != null) {
-            for (Join j : joins) {
-                join += CR + j.join(alias);
+        String join = joined;
+        if (join == null) {
+            StringBuilder j = new StringBuilder();
+            if (joins != null) {
+                for (Join with : joins) {
+                    j.append(CR).append(with.join(alias));
+                }
             }
+            joined = join = j.toString();
         }
         return join;
     }
@@ -353,31 +459,48 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * Read fields from the passed ResultSet into the "fields" object, ignoring
      * any columns appearing in the "avoid" field. The avoid mechanism is designed
      * to pass a set of key columns which should not be overwritten.
+     * <p>
+     * Only the selected columns are read and they are read by their position
+     * in the SELECT - looking each one up by name every row is slow.
      *
-     * @param rs     ResultSet
-     * @param fields Fields
-     * @param avoid  Set
+     * @param rs       ResultSet
+     * @param fields   Fields
+     * @param selected List - the columns the query selected, in order.
+     * @param avoid    Set
      * @throws SQLException
      */
-    private void readFields(ResultSet rs, Fields<Column> fields, Set<Column> avoid) throws SQLException {
-        for (Column col : columns) {
+    private void readFields(ResultSet rs, Fields<Column> fields, List<Column> selected, Set<Column> avoid) throws SQLException {
+        for (int i = 0; i < selected.size(); i++) {
+            Column col = selected.get(i);
             // Not key column.
             if (avoid == null || !avoid.contains(col)) {
-                fields.setField(col, rs);
+                fields.setField(col, rs, i + 1);
             }
         }
     }
 
+    /**
+     * The columns a SELECT of these columns selects in the order it selects
+     * them - the order getColumns lists them.
+     *
+     * @param columns Set
+     * @return List
+     */
+    private List<Column> selected(Set<Column> columns) {
+        return columns == this.columns ? allColumns : Collections.unmodifiableList(new ArrayList<>(columns));
+    }
+
     /**
      * Build a query that will delete the record with values from "fields" that
-     * also appear in the key.
+     * also appear in the key - or slots for them if slots is not null.
      *
-     * @param key Set
+     * @param key   Set
+     * @param slots List
      * @return String
      */
-    private String deleteQuery(Set<Column> key) {
+    private String deleteQuery(Set<Column> key, List<Column> slots) {
         String query = "DELETE FROM " + tableName + CR + "WHERE ";
-        query += keyValues(key, false);
+        query += keyValues(key, false, slots);
         return query;
     }
 
@@ -403,21 +526,54 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @return String
      */
     private String keyValues(Set<Column> key, boolean addTableName) {
+        return keyValues(key, addTableName, null);
+    }
+
+    /**
+     * As above but if slots is not null the values are left as parameters and
+     * their columns are added to the slots.
+     *
+     * @param key          Set
+     * @param addTableName boolean
+     * @param slots        List
+     * @return String
+     */
+    private String keyValues(Set<Column> key, boolean addTableName, List<Column> slots) {
         StringBuilder vals = new StringBuilder();
         Separator and = new Separator(" AND ");
         String table = addTableName ? tableName() : "";
         for (Column e : key) {
-            Field<Column> f = fields.getField(e);
-            try {
-                // ... AND Col = 'Value'
-                vals = vals.append(and.sep()).append(table).append(e.name()).append(" = ").append(f.forDb());
-            } catch (NullPointerException npe) {
-                throw new NullPointerException("Field " + e + " missing");
-            }
+            // ... AND Col = 'Value'
+            vals = vals.append(and.sep()).append(table).append(e.name()).append(" = ").append(value(e, slots));
         }
         return vals.toString();
     }
 
+    /**
+     * The value of the field as it should appear in a query - either in its db
+     * form or as a parameter slot if slots is not null.
+     *
+     * @param column Column
+     * @param slots  List
+     * @return String
+     */
+    private String value(Column column, List<Column> slots) {
+        if (slots != null) {
+            slots.add(column);
+            return SLOT;
+        }
+        Field<Column> f = fields.getField(column);
+        if (f == null) {
+            throw new NullPointerException("Field " + column + " missing");
+        }
+        return literal(f);
+    }
+
+    // The field as it should appear in a query - the dialect decides on times.
+    private String literal(Field<Column> f) {
+        return f.getType() == Type.Timestamp ? db.dialect.timestamp((Timestamp) f.value()) : f.forDb();
+    }
+
     /**
      * Execute the query as an update.
      * <p>
@@ -430,18 +586,71 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @throws SQLException
      */
     protected int update(String query, boolean warnIfNone) throws SQLException {
+        try {
+            return execute(query, warnIfNone);
+        } finally {
+            // Could have changed anything.
+            invalidateCache();
+        }
+    }
+
+    /**
+     * As above but leaves the cache alone.
+     *
+     * @param query      String
+     * @param warnIfNone boolean
+     * @return int - how many records were updated.
+     * @throws SQLException
+     */
+    private int execute(String query, boolean warnIfNone) throws SQLException {
         int updated = 0;
         logSql(query);
         Statement s = db.getStatement();
+        long start = System.nanoTime();
+        long rows = -1;
         try {
             updated = s.executeUpdate(query);
+            rows = Math.max(updated, 0);
         } catch (SQLException e) {
             log.warn("Query failed: " + query);
             throw e;
         } finally {
-            db.releaseStatement(s);
+            metrics.record(query, start, rows);
+            db.releaseStatement(s, rows < 0);
+        }
+        return checkUpdated(updated, warnIfNone);
+    }
+
+    /**
+     * As above but executes a parameterised query with values bound from the
+     * offered fields.
+     *
+     * @param query      Parameterised
+     * @param warnIfNone boolean
+     * @return int - how many records were updated.
+     * @throws SQLException
+     */
+    private int execute(Parameterised<Column> query, Fields<Column> from, boolean warnIfNone) throws SQLException {
+        int updated = 0;
+        logSql(query.sql);
+        PreparedStatement ps = bind(query, from);
+        long start = System.nanoTime();
+        long rows = -1;
+        try {
+            updated = ps.executeUpdate();
+            rows = Math.max(updated, 0);
+        } catch (SQLException e) {
+            log.warn("Query failed: " + query.sql);
+            throw e;
+        } finally {
+            metrics.record(query.sql, start, rows);
+            db.releaseStatement(ps, rows < 0);
         }
-        // Did something happen?
+        return checkUpdated(updated, warnIfNone);
+    }
+
+    // Did something happen?
+    private int checkUpdated(int updated, boolean warnIfNone) {
         if (updated != -1 && updated != 1) {
             if (warnIfNone) {
                 log.warn("Updated: " + updated);
@@ -457,13 +666,17 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * <p>
      * Key values will be matched exactly.
      * <p>
-     * Any non-null values in the fields that are not in the key will be updated.
+     * If slots is not null the values are left as parameters and all of the
+     * columns are updated - so only pass the ones that are present. Otherwise
+     * any non-null values in the fields that are not in the key will be
+     * updated.
      *
      * @param key     Set
      * @param columns Set
+     * @param slots   List
      * @return String
      */
-    private String updateQuery(Set<Column> key, Set<Column> columns) {
+    private String updateQuery(Set<Column> key, Set<Column> columns, List<Column> slots) {
         /** @todo Do something else if nothing to update. */
         String query = "UPDATE " + tableName + " SET ";
         // SET - All update columns not in key.
@@ -471,30 +684,17 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
         for (Column col : columns) {
             // Not key column.
             if (!key.contains(col)) {
-                Field<Column> field = fields.getField(col);
                 // Skip nulls.
-                if (field != null) {
-                    query += comma.sep() + col.name() + " = " + field.forDb();
+                if (slots != null || fields.getField(col) != null) {
+                    query += comma.sep() + col.name() + " = " + value(col, slots);
                 }
             }
         }
         // WHERE All columns in key.
-        query += CR + "WHERE " + keyValues(key, false);
+        query += CR + "WHERE " + keyValues(key, false, slots);
         return query;
     }
 
-    /**
-     * Utility version of the above.
-     * <p>
-     * Defaults to the table's columns.
-     *
-     * @param key Set
-     * @return String
-     */
-    private String updateQuery(Set<Column> key) {
-        return (updateQuery(key, columns));
-    }
-
     /**
      * Does whatever is necessary to ensure the table exists.
      * <p>
@@ -547,22 +747,44 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @throws SQLException
      */
     public void insertRecord() throws SQLException {
-        String query = insertQuery(true);
-        update(query, true);
+        writeBehindFirst();
+        Parameterised<Column> query = parameterise(Operation.Insert, present(columns, fields), null, null);
+        if (prepared) {
+            execute(query, fields, true);
+        } else {
+            execute(fill(query, fields), true);
+        }
+        if (cache != null) {
+            cache.inserted(fields);
+        }
     }
 
     /**
-     * Builds a query to insert a new record in the table. Passing a "true" value
-     * for skipNulls will skip any null fields, thus leaving them at their default
-     * value.
+     * Builds a parameterised query to insert the specified columns.
      *
-     * @param skipNulls boolean
+     * @param which Set
+     * @param slots List
      * @return String
      */
-    private String insertQuery(boolean skipNulls) {
-        String query = "INSERT INTO " + tableName + CR + "(" + getColumns(skipNulls) + ")";
-        query += CR + "VALUES (" + getFields(skipNulls) + ");";
-        return query;
+    private String insertQuery(Set<Column> which, List<Column> slots) {
+        StringBuilder values = new StringBuilder();
+        Separator comma = new Separator(COMMA);
+        for (Column col : which) {
+            values.append(comma.sep()).append(value(col, slots));
+        }
+        return "INSERT INTO " + tableName + CR + "(" + insertColumns(which) + ")"
+                + CR + "VALUES (" + values + ");";
+    }
+
+    /**
+     * The columns of an INSERT - just their names. Only Sql Server ignores an
+     * alias there.
+     *
+     * @param which Set
+     * @return String
+     */
+    private String insertColumns(Set<Column> which) {
+        return String.join(COMMA, names(which));
     }
 
     /**
@@ -576,7 +798,7 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
         for (Column col : columns) {
             qry = qry.append(comma.sep()).append(col.name()).append(" ").append(col.getDbType()).append(" ").append(col.getAllowNulls() ? "" : "NOT ").append("NULL");
         }
-        qry = qry.append(") ON [PRIMARY]");
+        qry = qry.append(")").append(db.dialect.createTableSuffix());
         return qry.toString();
     }
 
@@ -589,8 +811,7 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @throws SQLException
      */
     public int updateRecord(Set<Column> key) throws SQLException {
-        String query = updateQuery(key);
-        return update(query, true);
+        return updateRecord(key, columns);
     }
 
     /**
@@ -605,8 +826,25 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @throws SQLException
      */
     public int updateRecord(Set<Column> key, Set<Column> columns) throws SQLException {
-        String query = updateQuery(key, columns);
-        return update(query, true);
+        invalidateCache(key, fields);
+        WriteBehind writeBehind = this.writeBehind;
+        // Not in a transaction - it must commit or roll back with the rest.
+        if (writeBehind != null && writeBehind.key.equals(key) && !db.isInTransaction()) {
+            // It'll get there.
+            writeBehind.update(columns, fields);
+            return 1;
+        }
+        writeBehindFirst();
+        Parameterised<Column> query = updateParameterised(key, columns, fields);
+        try {
+            if (prepared) {
+                return execute(query, fields, true);
+            }
+            return execute(fill(query, fields), true);
+        } finally {
+            // Anything read while it was being written is stale.
+            invalidateCache(key, fields);
+        }
     }
 
     /**
@@ -638,8 +876,320 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @throws SQLException
      */
     public int deleteRecord(Set<Column> key, boolean warnIfNone) throws SQLException {
-        String query = deleteQuery(key);
-        return update(query, warnIfNone);
+        invalidateCache(key, fields);
+        WriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            // Updates before a delete must not land after it.
+            writeBehind.deleting(key, fields);
+        }
+        Parameterised<Column> query = parameterise(Operation.Delete, null, key, null);
+        try {
+            if (prepared) {
+                return execute(query, fields, warnIfNone);
+            }
+            return execute(fill(query, fields), warnIfNone);
+        } finally {
+            // Anything read while it was being deleted is stale.
+            invalidateCache(key, fields);
+        }
+    }
+
+    /**
+     * What to do when an upserted record is already there.
+     */
+    public enum Conflict {
+        // Leave what is there - insert-if-absent.
+        Ignore,
+        // Overwrite it with the new values.
+        Update
+    }
+
+    /**
+     * Inserts all of the records, resolving any that are already there by key
+     * as the conflict says, and returns the records as they now are in the
+     * table - one per distinct key in the order they were first offered.
+     * <p>
+     * Uses the dialect's upsert (usually MERGE) so the whole lot goes in a few
+     * set-based statements rather than one at a time. Where the same key is offered more than once the
+     * first wins for Ignore and the last for Update.
+     * <p>
+     * The columns written are those present in the first record. All must
+     * have them.
+     *
+     * @param records  Collection
+     * @param key      Set
+     * @param conflict Conflict
+     * @return ArrayList - the resolved records.
+     * @throws SQLException
+     */
+    public ArrayList<Fields<Column>> upsertRecords(Collection<? extends Fields<Column>> records, Set<Column> key, Conflict conflict) throws SQLException {
+        ArrayList<Fields<Column>> resolved = new ArrayList<>();
+        if (records.isEmpty()) {
+            return resolved;
+        }
+        // One of each key.
+        Map<String, Fields<Column>> distinct = new LinkedHashMap<>();
+        for (Fields<Column> record : records) {
+            String k = keyOf(key, record);
+            if (conflict == Conflict.Update || !distinct.containsKey(k)) {
+                distinct.put(k, record);
+            }
+        }
+        List<Fields<Column>> rows = new ArrayList<>(distinct.values());
+        Set<Column> which = present(columns, rows.get(0));
+        if (!which.containsAll(key)) {
+            throw new NullPointerException("Key " + key + " missing");
+        }
+        if (conflict == Conflict.Update) {
+            writeBehindFirst();
+        }
+        Dialect dialect = db.dialect;
+        if (upsertQuery(which, key, 1, conflict) != null) {
+            int chunk = Math.max(1, Math.min(dialect.maxRows(), dialect.maxParameters() / which.size()));
+            for (int i = 0; i < rows.size(); i += chunk) {
+                List<Fields<Column>> some = rows.subList(i, Math.min(rows.size(), i + chunk));
+                executeRows(upsertQuery(which, key, some.size(), conflict), which, some);
+            }
+        } else {
+            for (Fields<Column> row : rows) {
+                upsert(row, which, key, conflict);
+            }
+        }
+        RowCache<Column> cache = this.cache;
+        if (cache != null) {
+            for (Fields<Column> row : rows) {
+                if (conflict == Conflict.Update) {
+                    cache.invalidate(key, row);
+                }
+                cache.inserted(row);
+            }
+        }
+        // What is there now.
+        Map<String, Fields<Column>> found = readByKeys(key, rows, false);
+        for (String k : distinct.keySet()) {
+            Fields<Column> f = found.get(k);
+            if (f == null) {
+                throw new SQLException("Upsert of " + k.replace('\0', ',') + " did not resolve.");
+            }
+            resolved.add(f);
+        }
+        return resolved;
+    }
+
+    // The dialect's upsert of this many rows - null if it can't.
+    private String upsertQuery(Set<Column> which, Set<Column> key, int rows, Conflict conflict) {
+        return db.dialect.upsert(tableName, alias, names(which), names(key), rows, conflict == Conflict.Update);
+    }
+
+    // The names of the columns.
+    private List<String> names(Set<Column> columns) {
+        List<String> names = new ArrayList<>(columns.size());
+        for (Column col : columns) {
+            names.add(col.name());
+        }
+        return names;
+    }
+
+    // Upsert one record the slow way - for dialects that can't do it at once.
+    private void upsert(Fields<Column> row, Set<Column> which, Set<Column> key, Conflict conflict) throws SQLException {
+        if (conflict == Conflict.Update) {
+            Set<Column> update = EnumSet.copyOf(which);
+            update.removeAll(key);
+            if (!update.isEmpty() && execute(parameterise(Operation.Update, update, key, null), row, false) > 0) {
+                return;
+            }
+        } else {
+            ArrayList<Fields<Column>> there = new ArrayList<>();
+            getQueryResults(parameterise(Operation.Read, key, key, null), row, there, null);
+            if (!there.isEmpty()) {
+                return;
+            }
+        }
+        try {
+            execute(parameterise(Operation.Insert, which, null, null), row, false);
+        } catch (SQLException ex) {
+            // Probably lost a race for it - if not it won't resolve.
+            log.debug("Upsert insert failed: " + ex);
+        }
+    }
+
+    /**
+     * Read the records matching each of the rows by key - in as few queries as
+     * possible.
+     * <p>
+     * If parallel the queries run at the same time, each on its own
+     * connection. Any the executor has not started by the time they are
+     * needed are run here - this may itself be running on the executor.
+     *
+     * @param key      Set
+     * @param rows     List - holding the key values.
+     * @param parallel boolean
+     * @return Map - from keyOf to the record.
+     * @throws SQLException
+     */
+    private Map<String, Fields<Column>> readByKeys(Set<Column> key, List<Fields<Column>> rows, boolean parallel) throws SQLException {
+        Map<String, Fields<Column>> found = new HashMap<>();
+        int chunk = Math.max(1, db.dialect.maxParameters() / key.size());
+        // Set when one fails - the rest needn't bother.
+        AtomicBoolean failed = new AtomicBoolean();
+        List<FutureTask<Map<String, Fields<Column>>>> others = new ArrayList<>();
+        // Start all but the first.
+        for (int i = chunk; parallel && i < rows.size(); i += chunk) {
+            final List<Fields<Column>> some = rows.subList(i, Math.min(rows.size(), i + chunk));
+            FutureTask<Map<String, Fields<Column>>> task = new FutureTask<>(() -> failed.get() ? null : readChunk(key, some));
+            others.add(task);
+            try {
+                getExecutor().execute(task);
+            } catch (RejectedExecutionException ex) {
+                // It'll be done here.
+            }
+        }
+        boolean done = false;
+        try {
+            // Do the first (or all) here.
+            for (int i = 0; i < rows.size() && (i == 0 || !parallel); i += chunk) {
+                found.putAll(readChunk(key, rows.subList(i, Math.min(rows.size(), i + chunk))));
+            }
+            for (FutureTask<Map<String, Fields<Column>>> task : others) {
+                // Not started - do it here rather than wait for a thread that could be waiting for me.
+                task.run();
+                found.putAll(get(task));
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                failed.set(true);
+                // Don't leave them running behind our back.
+                for (FutureTask<Map<String, Fields<Column>>> task : others) {
+                    task.run();
+                    try {
+                        task.get();
+                    } catch (ExecutionException ex) {
+                        // Already failing.
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // Wait for it - unwrapping any SQLException.
+    static <T> T get(Future<T> f) throws SQLException {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a read.", ex);
+        }
+    }
+
+    // One query for all of them.
+    private Map<String, Fields<Column>> readChunk(Set<Column> key, List<Fields<Column>> some) throws SQLException {
+        Map<String, Fields<Column>> found = new HashMap<>();
+        // Pad up to a power of two with repeats so there are few shapes to prepare.
+        int n = Integer.highestOneBit(some.size());
+        n = n == some.size() ? n : n << 1;
+        List<Fields<Column>> padded = new ArrayList<>(some);
+        while (padded.size() < n) {
+            padded.add(some.get(some.size() - 1));
+        }
+        List<Column> slots = new ArrayList<>();
+        StringBuilder where = new StringBuilder();
+        if (key.size() == 1) {
+            // WHERE A.Id IN (?, ?, ...)
+            Column col = key.iterator().next();
+            where.append(tableName()).append(col.name()).append(" IN (");
+            Separator comma = new Separator(", ");
+            for (int r = 0; r < n; r++) {
+                where.append(comma.sep()).append(value(col, slots));
+            }
+            where.append(")");
+        } else {
+            // WHERE (A.Id = ? AND A.Name = ?) OR (...) ...
+            Separator or = new Separator(CR + "OR ");
+            for (int r = 0; r < n; r++) {
+                where.append(or.sep()).append("(").append(keyValues(key, true, slots)).append(")");
+            }
+        }
+        String query = new Parameterised<>(readQuery(columns, null) + CR + "WHERE " + where, slots).sql;
+        logSql(query);
+        PreparedStatement ps = db.prepare(query);
+        long start = System.nanoTime();
+        long rows = -1;
+        try {
+            bindRows(ps, key, padded);
+            try (ResultSet rs = ps.executeQuery()) {
+                rows = 0;
+                while (rs.next()) {
+                    Fields<Column> record = newFields(some.get(0));
+                    readFields(rs, record, allColumns, null);
+                    found.put(keyOf(key, record), record);
+                    rows += 1;
+                }
+            }
+        } finally {
+            metrics.record(query, start, rows);
+            db.releaseStatement(ps, rows < 0);
+        }
+        return found;
+    }
+
+    // Execute a statement with a row of slots for each of the rows.
+    private int executeRows(String query, Set<Column> which, List<Fields<Column>> rows) throws SQLException {
+        logSql(query);
+        PreparedStatement ps = db.prepare(query);
+        long start = System.nanoTime();
+        long affected = -1;
+        try {
+            bindRows(ps, which, rows);
+            int updated = ps.executeUpdate();
+            affected = Math.max(updated, 0);
+            return updated;
+        } catch (SQLException e) {
+            log.warn("Query failed: " + query);
+            throw e;
+        } finally {
+            metrics.record(query, start, affected);
+            db.releaseStatement(ps, affected < 0);
+        }
+    }
+
+    // Bind the columns of each row in turn.
+    private void bindRows(PreparedStatement ps, Set<Column> which, List<Fields<Column>> rows) throws SQLException {
+        int index = 1;
+        for (Fields<Column> row : rows) {
+            for (Column col : which) {
+                Field<Column> f = row.getField(col);
+                if (f == null) {
+                    throw new NullPointerException("Field " + col + " missing");
+                }
+                f.bind(ps, index++);
+            }
+        }
+    }
+
+    // The key values of a record in db form.
+    private String keyOf(Set<Column> key, Fields<Column> record) {
+        StringBuilder k = new StringBuilder();
+        for (Column col : key) {
+            k.append(record.getForDb(col)).append('\0');
+        }
+        return k.toString();
     }
 
     /**
@@ -657,11 +1207,27 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      */
     public Fields<Column> readRecord(Set<Column> key) throws SQLException {
         Fields<Column> red = null;
+        RowCache<Column> cache = this.cache;
+        long generation = 0;
+        if (cache != null) {
+            Fields<Column> hit = cache.get(key, fields);
+            if (hit != null) {
+                // Never hand out the cached one.
+                red = newFields(hit);
+                copy(red);
+                return red;
+            }
+            generation = cache.generation();
+        }
         ArrayList<Fields<Column>> records = readRecords(key);
         if (records != null && records.size() == 1) {
             red = records.get(0);
             // Keep those.
             copy(red);
+            // Not if it could be uncommitted.
+            if (cache != null && !db.isInTransaction()) {
+                cache.put(key, newFields(red), generation);
+            }
         }
         // Return the last one.
         return red;
@@ -689,6 +1255,60 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
         return readRecord(key);
     }
 
+    /**
+     * Reads the records for each of the ids by the key - the bulk version of
+     * readRecord(ID, Set).
+     * <p>
+     * Anything in the cache is taken from there. The rest are read in as few
+     * queries as the dialect's parameter limit allows - IN lists for a single
+     * column key - which run in parallel, each on its own connection. In a
+     * transaction they all run on its connection, one after another.
+     * <p>
+     * The current fields are not changed.
+     *
+     * @param key Set
+     * @param ids Collection
+     * @return Map - from each of the ids to its record. Those with no (unique) record are missing.
+     * @throws SQLException
+     */
+    public Map<ID, Fields<Column>> readRecords(Set<Column> key, Collection<? extends ID> ids) throws SQLException {
+        Map<ID, Fields<Column>> red = new LinkedHashMap<>();
+        // The key values of each.
+        Map<ID, Fields<Column>> keys = new LinkedHashMap<>();
+        // The ones we need to read - one of each key.
+        Map<String, Fields<Column>> wanted = new LinkedHashMap<>();
+        RowCache<Column> cache = this.cache;
+        for (ID id : ids) {
+            Fields<Column> k = new Fields<>(columns);
+            k.copyCorresponding(id.getFields());
+            Fields<Column> hit = cache != null ? cache.get(key, k) : null;
+            if (hit != null) {
+                red.put(id, newFields(hit));
+            } else {
+                keys.put(id, k);
+                wanted.put(keyOf(key, k), k);
+            }
+        }
+        if (!wanted.isEmpty()) {
+            long generation = cache != null ? cache.generation() : 0;
+            // Other connections can't see this transaction's writes and could wait on its locks.
+            Map<String, Fields<Column>> found = readByKeys(key, new ArrayList<>(wanted.values()), !db.isInTransaction());
+            for (Map.Entry<ID, Fields<Column>> e : keys.entrySet()) {
+                Fields<Column> f = found.get(keyOf(key, e.getValue()));
+                if (f != null) {
+                    red.put(e.getKey(), f);
+                }
+            }
+            // Not if they could be uncommitted.
+            if (cache != null && !db.isInTransaction()) {
+                for (Map.Entry<String, Fields<Column>> e : found.entrySet()) {
+                    cache.put(key, newFields(e.getValue()), generation);
+                }
+            }
+        }
+        return red;
+    }
+
     /**
      * Reads all records matching the given key.
      *
@@ -699,8 +1319,12 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      */
     public ArrayList<Fields<Column>> readRecords(Set<Column> columns, Set<Column> key) throws SQLException {
         ArrayList<Fields<Column>> records = new ArrayList<>();
-        String query = readQuery(columns, key);
-        getQueryResults(query, records, null);
+        Parameterised<Column> query = parameterise(Operation.Read, columns, key, null);
+        if (prepared) {
+            getQueryResults(query, fields, records, null);
+        } else {
+            getQueryResults(fill(query, fields), query.selected, records, null);
+        }
         return records;
     }
 
@@ -724,7 +1348,7 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @throws SQLException
      */
     public ArrayList<Fields<Column>> readRecords() throws SQLException {
-        return readRecords(columns, null);
+        return readRecords(columns, (Set<Column>) null);
     }
 
     /**
@@ -738,39 +1362,805 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      */
     public ArrayList<Fields<Column>> readRecords(Set<Column> columns, Set<Column> key1, Set<Column> orKey2) throws SQLException {
         ArrayList<Fields<Column>> records = new ArrayList<>();
-        String query = readQuery(columns, key1, orKey2);
-        getQueryResults(query, records, null);
+        Parameterised<Column> query = parameterise(Operation.Read, columns, key1, orKey2);
+        if (prepared) {
+            getQueryResults(query, fields, records, null);
+        } else {
+            getQueryResults(fill(query, fields), query.selected, records, null);
+        }
         return records;
     }
 
     /**
-     * Count the records in the table matching the specified "WHERE" clause.
-     *
-     * @param where
-     * @return
+     * Reads one page of the records matching the key in orderBy order,
+     * starting after the afterKey.
+     * <p>
+     * Keyset paging - the database seeks straight to the first row of the
+     * page however deep into the results it is rather than reading and
+     * throwing away all of the earlier pages. The ORDER BY and LIMIT happen in
+     * the database too.
+     * <p>
+     * The orderBy columns (in column order) must identify a record uniquely and
+     * never be null - add the primary key to the end if necessary.
+     * <p>
+     * Always parameterised.
+     *
+     * @param columns  Set
+     * @param key      Set - values from the current fields, null means all records.
+     * @param orderBy  Set
+     * @param afterKey Fields - the orderBy values of the last record of the previous page, null for the first page.
+     * @param limit    int - most records in the page.
+     * @return Page
      * @throws SQLException
      */
-    public int count(String where) throws SQLException {
-        int count = 0;
-        String query = countQuery(where);
-        // Probably don't want it logged.
-        //logQuery = false;
-        //logSql(query);
-        Statement s = null;
-        ResultSet rs = null;
-        try {
-            s = db.getStatement();
-            rs = s.executeQuery(query);
-            // Scan each record.
-            while (rs.next()) {
-                count += rs.getInt(1);
-            }
-        } finally {
-            if (rs != null) {
-                rs.close();
+    public Page readPage(Set<Column> columns, Set<Column> key, Set<Column> orderBy, Fields<Column> afterKey, int limit) throws SQLException {
+        // WHERE key AND (o1 > ? OR (o1 = ? AND o2 > ?) ...)
+        List<Column> slots = new ArrayList<>();
+        // Not the joined columns - they aren't read and their names may clash
+        // with ours in a paging subquery.
+        StringBuilder query = new StringBuilder(readQuery(columns, key, null, slots, false));
+        Fields<Column> values = fields;
+        if (afterKey != null) {
+            query.append(CR).append(key != null ? "AND (" : "WHERE (");
+            Separator or = new Separator(CR + "OR ");
+            List<Column> equal = new ArrayList<>();
+            for (Column col : orderBy) {
+                query.append(or.sep()).append("(");
+                for (Column e : equal) {
+                    query.append(tableName()).append(e.name()).append(" = ").append(value(e, slots)).append(" AND ");
+                }
+                query.append(tableName()).append(col.name()).append(" > ").append(value(col, slots)).append(")");
+                equal.add(col);
             }
-            if (s != null) {
-                db.releaseStatement(s);
+            query.append(")");
+            // The key values and the after values together.
+            values = newFields(fields);
+            for (Column col : orderBy) {
+                values.setField(col, afterKey.getField(col));
+            }
+        }
+        StringBuilder order = new StringBuilder();
+        Separator comma = new Separator(", ");
+        for (Column col : orderBy) {
+            order.append(comma.sep()).append(tableName()).append(col.name());
+        }
+        List<Column> selected = selected(columns);
+        List<String> names = new ArrayList<>(selected.size());
+        for (Column col : selected) {
+            names.add(col.name());
+        }
+        // One more than asked for tells us if there are more.
+        String sql = db.dialect.page(query.toString(), names, order.toString(), 0, limit + 1);
+        ArrayList<Fields<Column>> records = new ArrayList<>();
+        getQueryResults(new Parameterised<>(sql, slots, selected), values, records, null);
+        boolean more = records.size() > limit;
+        if (more) {
+            records.remove(limit);
+        }
+        return new Page(records, orderBy, more);
+    }
+
+    /**
+     * As above but continuing from a page's token.
+     *
+     * @param columns Set
+     * @param key     Set
+     * @param orderBy Set
+     * @param token   String - from Page.getToken, null for the first page.
+     * @param limit   int
+     * @return Page
+     * @throws SQLException
+     */
+    public Page readPage(Set<Column> columns, Set<Column> key, Set<Column> orderBy, String token, int limit) throws SQLException {
+        Fields<Column> afterKey = null;
+        if (token != null) {
+            afterKey = new Fields<>(this.columns);
+            String[] values = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split("\0", -1);
+            int i = 0;
+            for (Column col : orderBy) {
+                afterKey.setField(col, col.getType().parse(values[i++]));
+            }
+        }
+        return readPage(columns, key, orderBy, afterKey, limit);
+    }
+
+    /**
+     * One page of records.
+     */
+    public class Page {
+        // The records in the page.
+        private final ArrayList<Fields<Column>> records;
+        // What they are in order of.
+        private final Set<Column> orderBy;
+        // Are there more after these.
+        private final boolean more;
+
+        Page(ArrayList<Fields<Column>> records, Set<Column> orderBy, boolean more) {
+            this.records = records;
+            this.orderBy = orderBy;
+            this.more = more;
+        }
+
+        public ArrayList<Fields<Column>> getRecords() {
+            return records;
+        }
+
+        public boolean hasMore() {
+            return more;
+        }
+
+        /**
+         * Where the next page starts - pass as the afterKey.
+         *
+         * @return Fields - null if this is the last page.
+         */
+        public Fields<Column> getAfter() {
+            return more ? records.get(records.size() - 1) : null;
+        }
+
+        /**
+         * Where the next page starts as a String that can be handed out to a
+         * client and back - pass as the token.
+         *
+         * @return String - null if this is the last page.
+         */
+        public String getToken() {
+            Fields<Column> after = getAfter();
+            if (after == null) {
+                return null;
+            }
+            StringBuilder t = new StringBuilder();
+            Separator nul = new Separator("\0");
+            for (Column col : orderBy) {
+                t.append(nul.sep()).append(after.getField(col).value());
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(t.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * How many rows to fetch from the database at a time when streaming.
+     */
+    public static final int FETCH_SIZE = 1000;
+
+    /**
+     * Opens a cursor over all records matching the given key.
+     * <p>
+     * Rows are read from the database as they are consumed so memory use
+     * stays constant however big the table. The statement is held until the
+     * cursor is closed or reaches the end - so ALWAYS close it.
+     * <p>
+     * If reuse is true the same Fields object is refilled for every row so do
+     * not hold on to it beyond the next call to next.
+     *
+     * @param columns   Set
+     * @param key       Set - null means all records.
+     * @param fetchSize int - rows fetched at a time, 0 for the driver default.
+     * @param reuse     boolean
+     * @return Cursor
+     * @throws SQLException
+     */
+    public Cursor openCursor(Set<Column> columns, Set<Column> key, int fetchSize, boolean reuse) throws SQLException {
+        return openCursor(columns, key, fields, fetchSize, reuse, prepared);
+    }
+
+    /**
+     * As above but with the key values (and template for each record) from
+     * the offered fields.
+     */
+    private Cursor openCursor(Set<Column> columns, Set<Column> key, Fields<Column> from, int fetchSize, boolean reuse, boolean parameterised) throws SQLException {
+        Parameterised<Column> template = parameterise(Operation.Read, columns, key, null);
+        if (!parameterised) {
+            return openCursor(fill(template, from), template.selected, from, fetchSize, reuse);
+        }
+        Parameterised<Column> query = template;
+        logSql(query.sql);
+        PreparedStatement ps = bind(query, from);
+        ResultSet rs;
+        long start = System.nanoTime();
+        try {
+            ps.setFetchSize(fetchSize);
+            rs = ps.executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            metrics.record(query.sql, start, -1);
+            releaseCursor(ps, true);
+            throw e;
+        }
+        // Rows are added as they are delivered.
+        metrics.record(query.sql, start, 0);
+        return new Cursor(ps, rs, template.selected, from, reuse);
+    }
+
+    // A cursor over the results of a ready made query.
+    private Cursor openCursor(String query, List<Column> selected, Fields<Column> from, int fetchSize, boolean reuse) throws SQLException {
+        logSql(query);
+        Statement s = db.getStatement();
+        ResultSet rs;
+        long start = System.nanoTime();
+        try {
+            s.setFetchSize(fetchSize);
+            rs = s.executeQuery(query);
+        } catch (SQLException | RuntimeException e) {
+            metrics.record(query, start, -1);
+            releaseCursor(s, true);
+            throw e;
+        }
+        metrics.record(query, start, 0);
+        return new Cursor(s, rs, selected, from, reuse);
+    }
+
+    /**
+     * Streams all records matching the given key.
+     * <p>
+     * See openCursor. Close the stream (try-with-resources) to release the
+     * statement early.
+     *
+     * @param columns   Set
+     * @param key       Set - null means all records.
+     * @param fetchSize int - rows fetched at a time, 0 for the driver default.
+     * @param reuse     boolean
+     * @return Stream
+     * @throws SQLException
+     */
+    public Stream<Fields<Column>> streamRecords(Set<Column> columns, Set<Column> key, int fetchSize, boolean reuse) throws SQLException {
+        Cursor cursor = openCursor(columns, key, fetchSize, reuse);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cursor::close);
+    }
+
+    /**
+     * Utility version of the above.
+     * <p>
+     * Defaults the columns to the table's columns, a fetch size of FETCH_SIZE
+     * and a new Fields for each row.
+     *
+     * @param key Set
+     * @return Stream
+     * @throws SQLException
+     */
+    public Stream<Fields<Column>> streamRecords(Set<Column> key) throws SQLException {
+        return streamRecords(columns, key, FETCH_SIZE, false);
+    }
+
+    /**
+     * How to split a table for a parallel scan.
+     */
+    public enum Partitioning {
+
+        /**
+         * Equal ranges of the values between the lowest and highest - each can
+         * use an index on the column. Uneven if the values are.
+         */
+        Range {
+            @Override
+            <C extends Enum<C> & Columns> List<String> split(Table<C> t, C by, int n) throws SQLException {
+                String col = t.tableName() + by.name();
+                long[] range = t.range(by);
+                if (range == null) {
+                    // Nothing there.
+                    return Collections.singletonList("1 = 1");
+                }
+                BigInteger low = BigInteger.valueOf(range[0]);
+                BigInteger span = BigInteger.valueOf(range[1]).subtract(low).add(BigInteger.ONE);
+                // No more partitions than values.
+                n = (int) Math.min(n, span.min(BigInteger.valueOf(n)).longValue());
+                List<String> where = new ArrayList<>(n);
+                // The first and last are open ended so nothing added since is missed.
+                long from = 0;
+                for (int i = 0; i < n; i++) {
+                    long to = low.add(span.multiply(BigInteger.valueOf(i + 1)).divide(BigInteger.valueOf(n))).longValue();
+                    if (i == 0) {
+                        where.add(n == 1 ? "1 = 1" : col + " IS NULL OR " + col + " < " + to);
+                    } else if (i < n - 1) {
+                        where.add(col + " >= " + from + " AND " + col + " < " + to);
+                    } else {
+                        where.add(col + " >= " + from);
+                    }
+                    from = to;
+                }
+                return where;
+            }
+        },
+        /**
+         * The remainder of the value divided by the number of partitions - even
+         * whatever the values but each partition reads the whole table.
+         */
+        Modulo {
+            @Override
+            <C extends Enum<C> & Columns> List<String> split(Table<C> t, C by, int n) throws SQLException {
+                String col = t.tableName() + by.name();
+                String mod = "ABS(" + t.db.dialect.mod(col, n) + ")";
+                List<String> where = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    where.add(i == 0 ? col + " IS NULL OR " + mod + " = 0" : mod + " = " + i);
+                }
+                return where;
+            }
+        };
+
+        // The WHERE of each partition - there may be fewer than asked for.
+        abstract <C extends Enum<C> & Columns> List<String> split(Table<C> t, C by, int n) throws SQLException;
+    }
+
+    /**
+     * Reads the whole table in partitions, each on its own connection from the
+     * pool.
+     * <p>
+     * The stream is parallel - each partition is read by one thread of the
+     * common ForkJoinPool. Don't ask for more partitions than the database can
+     * usefully serve - never more than the pool size. Close the stream to
+     * release the connections early.
+     *
+     * @param columns    Set
+     * @param by         Column - an Integer or Long.
+     * @param how        Partitioning
+     * @param partitions int
+     * @return Stream
+     * @throws SQLException
+     */
+    public Stream<Fields<Column>> parallelScan(Set<Column> columns, Column by, Partitioning how, int partitions) throws SQLException {
+        Fields<Column> template = newFields(fields);
+        String select = readQuery(columns, null) + CR + "WHERE ";
+        List<Column> selected = selected(columns);
+        return partition(by, how, partitions).parallelStream().flatMap(where -> {
+            Cursor cursor;
+            try {
+                cursor = openCursor(select + where, selected, template, FETCH_SIZE, false);
+            } catch (SQLException ex) {
+                throw new RuntimeException("Exception in parallelScan", ex);
+            }
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.NONNULL), false)
+                    .onClose(cursor::close);
+        });
+    }
+
+    /**
+     * As above but each partition is read by a task on the async executor
+     * which hands its records to the action - from many threads at once.
+     *
+     * @param columns    Set
+     * @param by         Column - an Integer or Long.
+     * @param how        Partitioning
+     * @param partitions int
+     * @param action     Consumer - must be thread safe.
+     * @return CompletableFuture - of how many records.
+     * @throws SQLException
+     */
+    public CompletableFuture<Long> scanPartitions(Set<Column> columns, Column by, Partitioning how, int partitions, Consumer<? super Fields<Column>> action) throws SQLException {
+        Fields<Column> template = newFields(fields);
+        String select = readQuery(columns, null) + CR + "WHERE ";
+        List<Column> selected = selected(columns);
+        List<CompletableFuture<Long>> scans = new ArrayList<>();
+        for (String where : partition(by, how, partitions)) {
+            scans.add(async(() -> {
+                long count = 0;
+                try (Cursor cursor = openCursor(select + where, selected, template, FETCH_SIZE, false)) {
+                    while (cursor.hasNext()) {
+                        action.accept(cursor.next());
+                        count += 1;
+                    }
+                }
+                return count;
+            }));
+        }
+        return CompletableFuture.allOf(scans.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> scans.stream().mapToLong(CompletableFuture::join).sum());
+    }
+
+    // The WHERE of each partition.
+    private List<String> partition(Column by, Partitioning how, int partitions) throws SQLException {
+        if (by.getType() != Type.Integer && by.getType() != Type.Long) {
+            throw new IllegalArgumentException("Can only partition by a number - not " + by + " " + by.getType());
+        }
+        // More than the pool would just wait for each other.
+        return how.split(this, by, Math.max(1, Math.min(partitions, db.getPool().getSize())));
+    }
+
+    // Lowest and highest of the column - null if there are none.
+    private long[] range(Column by) throws SQLException {
+        String col = tableName() + by.name();
+        String query = "SELECT MIN(" + col + "), MAX(" + col + ")" + CR + "FROM " + tableName + " " + alias;
+        logSql(query);
+        Statement s = db.getStatement();
+        long start = System.nanoTime();
+        long rows = -1;
+        try (ResultSet rs = s.executeQuery(query)) {
+            rows = 1;
+            if (rs.next()) {
+                long low = rs.getLong(1);
+                if (!rs.wasNull()) {
+                    return new long[]{low, rs.getLong(2)};
+                }
+            }
+            return null;
+        } finally {
+            metrics.record(query, start, rows);
+            db.releaseStatement(s, rows < 0);
+        }
+    }
+
+    /**
+     * Write all records to the channel - see Transfer.
+     *
+     * @param format Transfer.Format
+     * @param out    WritableByteChannel - not closed.
+     * @return long - how many records.
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long exportRecords(Transfer.Format format, WritableByteChannel out) throws SQLException, IOException {
+        return Transfer.export(this, columns, format, out);
+    }
+
+    /**
+     * Insert all records from the channel - see Transfer.
+     *
+     * @param format Transfer.Format
+     * @param in     ReadableByteChannel - not closed.
+     * @return long - how many records.
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long importRecords(Transfer.Format format, ReadableByteChannel in) throws SQLException, IOException {
+        return Transfer.load(this, format, in);
+    }
+
+    /*
+     * Async operations.
+     *
+     * Each takes the fields to work from rather than using the current ones so
+     * any number can be in flight at once. They are copied at the call so pass
+     * getFields() if that is what you want. The current fields are never
+     * touched.
+     *
+     * They always use parameterised queries, run on their own connection
+     * from the pool and so are NOT part of any transaction the calling thread
+     * is in.
+     */
+
+    /**
+     * Reads a single record as defined by the key - from the cache if there.
+     * <p>
+     * Completes with null if more than one or no records match.
+     *
+     * @param from Fields - holding the key values.
+     * @param key  Set
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Fields<Column>> readRecordAsync(Fields<Column> from, Set<Column> key) {
+        final Fields<Column> snapshot = newFields(from);
+        return async(() -> {
+            RowCache<Column> cache = this.cache;
+            long generation = 0;
+            if (cache != null) {
+                Fields<Column> hit = cache.get(key, snapshot);
+                if (hit != null) {
+                    return newFields(hit);
+                }
+                generation = cache.generation();
+            }
+            ArrayList<Fields<Column>> records = new ArrayList<>();
+            getQueryResults(parameterise(Operation.Read, columns, key, null), snapshot, records, null);
+            if (records.size() != 1) {
+                return null;
+            }
+            Fields<Column> red = records.get(0);
+            // Not if it could be uncommitted.
+            if (cache != null && !db.isInTransaction()) {
+                cache.put(key, newFields(red), generation);
+            }
+            return red;
+        });
+    }
+
+    /**
+     * Reads all records matching the given key.
+     *
+     * @param from    Fields - holding the key values.
+     * @param columns Set
+     * @param key     Set - null means all records.
+     * @return CompletableFuture
+     */
+    public CompletableFuture<ArrayList<Fields<Column>>> readRecordsAsync(Fields<Column> from, Set<Column> columns, Set<Column> key) {
+        final Fields<Column> snapshot = newFields(from);
+        return async(() -> readRecords(snapshot, columns, key));
+    }
+
+    /**
+     * Reads all records matching the given key - leaving the current fields
+     * alone.
+     *
+     * @param from    Fields - holding the key values.
+     * @param columns Set
+     * @param key     Set - null means all records.
+     * @return ArrayList
+     * @throws SQLException
+     */
+    public ArrayList<Fields<Column>> readRecords(Fields<Column> from, Set<Column> columns, Set<Column> key) throws SQLException {
+        ArrayList<Fields<Column>> records = new ArrayList<>();
+        getQueryResults(parameterise(Operation.Read, columns, key, null), from, records, null);
+        return records;
+    }
+
+    /**
+     * Inserts a new record holding the offered fields.
+     *
+     * @param from Fields
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Void> insertRecordAsync(Fields<Column> from) {
+        final Fields<Column> snapshot = newFields(from);
+        try {
+            writeBehindFirst();
+        } catch (SQLException ex) {
+            return failed(ex);
+        }
+        return async(() -> {
+            execute(parameterise(Operation.Insert, present(columns, snapshot), null, null), snapshot, true);
+            RowCache<Column> cache = this.cache;
+            if (cache != null) {
+                cache.inserted(snapshot);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Updates the record defined by the key to contain the offered fields.
+     * <p>
+     * Completes with the number of records updated.
+     *
+     * @param from Fields
+     * @param key  Set
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Integer> updateRecordAsync(Fields<Column> from, Set<Column> key) {
+        final Fields<Column> snapshot = newFields(from);
+        WriteBehind writeBehind = this.writeBehind;
+        try {
+            if (writeBehind != null && writeBehind.key.equals(key) && !db.isInTransaction()) {
+                invalidateCache(key, snapshot);
+                // It'll get there.
+                writeBehind.update(columns, snapshot);
+                return CompletableFuture.completedFuture(1);
+            }
+            writeBehindFirst();
+        } catch (SQLException ex) {
+            return failed(ex);
+        }
+        return async(() -> {
+            invalidateCache(key, snapshot);
+            try {
+                return execute(updateParameterised(key, columns, snapshot), snapshot, true);
+            } finally {
+                // Anything read while it was being written is stale.
+                invalidateCache(key, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Deletes the record specified by the key.
+     * <p>
+     * Completes with the number of records deleted.
+     *
+     * @param from Fields - holding the key values.
+     * @param key  Set
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Integer> deleteRecordAsync(Fields<Column> from, Set<Column> key) {
+        final Fields<Column> snapshot = newFields(from);
+        WriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            try {
+                // Updates before a delete must not land after it.
+                writeBehind.deleting(key, snapshot);
+            } catch (SQLException ex) {
+                return failed(ex);
+            }
+        }
+        return async(() -> {
+            invalidateCache(key, snapshot);
+            try {
+                return execute(parameterise(Operation.Delete, null, key, null), snapshot, true);
+            } finally {
+                // Anything read while it was being deleted is stale.
+                invalidateCache(key, snapshot);
+            }
+        });
+    }
+
+    /**
+     * Opens the query in the background and completes with a stream over
+     * the results.
+     * <p>
+     * Consuming the stream reads from the database on the consuming thread -
+     * see streamRecords. ALWAYS close it.
+     *
+     * @param from      Fields - holding the key values.
+     * @param columns   Set
+     * @param key       Set - null means all records.
+     * @param fetchSize int - rows fetched at a time, 0 for the driver default.
+     * @return CompletableFuture
+     */
+    public CompletableFuture<Stream<Fields<Column>>> streamRecordsAsync(Fields<Column> from, Set<Column> columns, Set<Column> key, int fetchSize) {
+        final Fields<Column> snapshot = newFields(from);
+        return async(() -> {
+            Cursor cursor = openCursor(columns, key, snapshot, fetchSize, false, true);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(cursor::close);
+        });
+    }
+
+    /**
+     * Run the async operations of this table on your own executor rather than
+     * the one shared by everything on the Db.
+     *
+     * @param executor Executor - null to go back to the Db's.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        Executor executor = this.executor;
+        return executor != null ? executor : db.getExecutor();
+    }
+
+    // Run it on the executor - any exception completes the future exceptionally.
+    private <T> CompletableFuture<T> async(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException ex) {
+            // Rejected.
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    // Already failed.
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    // Anything buffered must land before a write that doesn't go through the buffer - or its flush would undo the write.
+    private void writeBehindFirst() throws SQLException {
+        WriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.sync();
+        }
+    }
+
+    /**
+     * A cursor over the results of a query.
+     * <p>
+     * Closes itself when it runs off the end.
+     */
+    public class Cursor implements Iterables.CloseableIterator<Fields<Column>>, AutoCloseable {
+        // The statement - must be released.
+        private final Statement statement;
+        // The results.
+        private final ResultSet rs;
+        // The columns selected - in order.
+        private final List<Column> selected;
+        // The template for each record.
+        private final Fields<Column> template;
+        // Refilled every row if not null.
+        private final Fields<Column> reused;
+        // The next one to deliver.
+        private Fields<Column> next = null;
+        // Closed yet?
+        private boolean closed = false;
+        // How many delivered.
+        private long rows = 0;
+
+        Cursor(Statement statement, ResultSet rs, List<Column> selected, Fields<Column> template, boolean reuse) {
+            this.statement = statement;
+            this.rs = rs;
+            this.selected = selected;
+            this.template = template;
+            reused = reuse ? newFields(template) : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !closed) {
+                try {
+                    if (rs.next()) {
+                        next = reused != null ? reused : newFields(template);
+                        readFields(rs, next, selected, null);
+                        rows += 1;
+                    } else {
+                        // Finished.
+                        close();
+                    }
+                } catch (SQLException ex) {
+                    close();
+                    throw new RuntimeException("Exception in Cursor", ex);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Fields<Column> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Fields<Column> n = next;
+            next = null;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                metrics.rows(QueryMetrics.Kind.Read, rows);
+                try {
+                    rs.close();
+                } catch (SQLException ex) {
+                    log.debug(ex.toString(), ex);
+                }
+                releaseCursor(statement, false);
+            }
+        }
+    }
+
+    // Put the statement back as we found it.
+    private void releaseCursor(Statement s, boolean failed) {
+        try {
+            s.setFetchSize(0);
+        } catch (SQLException ex) {
+            log.debug(ex.toString(), ex);
+        }
+        db.releaseStatement(s, failed);
+    }
+
+    /**
+     * Count the records in the table matching the specified "WHERE" clause.
+     *
+     * @param where
+     * @return
+     * @throws SQLException
+     */
+    public int count(String where) throws SQLException {
+        int count = 0;
+        String query = countQuery(where);
+        // Probably don't want it logged.
+        //logQuery = false;
+        //logSql(query);
+        Statement s = null;
+        ResultSet rs = null;
+        long start = 0;
+        long rows = -1;
+        try {
+            s = db.getStatement();
+            start = System.nanoTime();
+            rs = s.executeQuery(query);
+            // Scan each record.
+            while (rs.next()) {
+                count += rs.getInt(1);
+            }
+            rows = 1;
+        } finally {
+            if (s != null) {
+                metrics.record(query, start, rows);
+            }
+            if (rs != null) {
+                rs.close();
+            }
+            if (s != null) {
+                db.releaseStatement(s, rows < 0);
             }
         }
         return count;
@@ -784,11 +2174,7 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * @return String
      */
     private String countQuery(String where) {
-        String query = "SELECT COUNT(*) FROM " + tableName;
-        if (where != null) {
-            query += " WHERE " + where;
-        }
-        return query;
+        return where != null ? countAll + " WHERE " + where : countAll;
     }
 
     /**
@@ -812,16 +2198,26 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      */
     public long insertIdentityRecord(Column idColumn) throws SQLException {
         long identity = -1;
-        String query = insertQuery(true);
+        String query = fill(parameterise(Operation.Insert, present(columns, fields), null, null), fields);
         logSql(query);
         Statement s = db.getStatement();
-        s.executeUpdate(query, Statement.RETURN_GENERATED_KEYS);
-        ResultSet rs = s.getGeneratedKeys();
-        // Scan the record.
-        if (rs.next()) {
-            identity = rs.getLong(1);
+        long start = System.nanoTime();
+        long rows = -1;
+        try {
+            rows = Math.max(s.executeUpdate(query, Statement.RETURN_GENERATED_KEYS), 0);
+            try (ResultSet rs = s.getGeneratedKeys()) {
+                // Scan the record.
+                if (rs.next()) {
+                    identity = rs.getLong(1);
+                }
+            }
+        } finally {
+            metrics.record(query, start, rows);
+            db.releaseStatement(s, rows < 0);
+        }
+        if (cache != null) {
+            cache.inserted(fields);
         }
-        db.releaseStatement(s);
         return identity;
     }
 
@@ -981,122 +2377,506 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
     }
 
     /**
-     * Gets the field as an Integer.
+     * Gets the field as an Integer.
+     *
+     * @param column
+     * @return
+     */
+    public final Integer getInteger(Column column) {
+        return fields.getInteger(column);
+    }
+
+    /**
+     * Gets the field as a Long.
+     *
+     * @param column
+     * @return
+     */
+    public final Long getLong(Column column) {
+        return fields.getLong(column);
+    }
+
+    /**
+     * Gets the field as a Timestamp
+     *
+     * @param column
+     * @return
+     */
+    public final Timestamp getTimestamp(Column column) {
+        return fields.getTimestamp(column);
+    }
+
+    /**
+     * Set a field.
+     *
+     * @param column Column
+     * @param f      Field
+     */
+    public void setField(Column column, Field<Column> f) {
+        fields.setField(column, f);
+    }
+
+    /**
+     * Set a field from a String.
+     *
+     * @param column
+     * @param s
+     */
+    public void setField(Column column, String s) {
+        fields.setField(column, s);
+    }
+
+    /**
+     * Set a field from a Boolean.
+     *
+     * @param column
+     * @param b
+     */
+    public void setField(Column column, Boolean b) {
+        fields.setField(column, b);
+    }
+
+    /**
+     * Set a field from a boolean.
+     *
+     * @param column
+     * @param b
+     */
+    public void setField(Column column, boolean b) {
+        fields.setField(column, b);
+    }
+
+    /**
+     * Set a field from a Long.
+     *
+     * @param column
+     * @param l
+     */
+    public void setField(Column column, Long l) {
+        fields.setField(column, l);
+    }
+
+    /**
+     * Set a field from a long.
+     *
+     * @param column
+     * @param l
+     */
+    public void setField(Column column, long l) {
+        fields.setField(column, l);
+    }
+
+    /**
+     * Set a field from an Enum.
+     *
+     * @param column
+     * @param e
+     */
+    public void setField(Column column, Enum e) {
+        fields.setField(column, e);
+    }
+
+    /**
+     * Set a field from a Timestamp.
+     *
+     * @param column
+     * @param ts
+     */
+    public void setField(Column column, Timestamp ts) {
+        fields.setField(column, ts);
+    }
+
+    /**
+     * Clear a field.
+     *
+     * @param which
+     */
+    public void clear(Set<Column> which) {
+        fields.clear(which);
+    }
+
+    /**
+     * Switch to parameterised queries.
+     * <p>
+     * Each shape of query (operation, columns, key) is built once and the
+     * database gets to cache its plan. The statements are cached on each
+     * pooled connection.
+     * <p>
+     * Key sets used with a prepared table must not be changed afterwards as
+     * they identify the shape.
+     *
+     * @param prepared boolean
+     */
+    public void setPrepared(boolean prepared) {
+        this.prepared = prepared;
+    }
+
+    public boolean isPrepared() {
+        return prepared;
+    }
+
+    /**
+     * Cache the records read by readRecord.
+     * <p>
+     * Writes through this Table keep the cache in step. Writes made any other
+     * way will not be seen until the entries expire so use a ttl if there are
+     * any.
+     * <p>
+     * Records read in a transaction are not cached - they may never be
+     * committed.
+     *
+     * @param capacity  int - how many records to hold.
+     * @param ttlMillis long - how long they live, 0 for ever.
+     * @param policy    RowCache.Policy - how to choose what to evict.
+     */
+    public void enableCache(int capacity, long ttlMillis, RowCache.Policy policy) {
+        cache = new RowCache<>(capacity, ttlMillis, policy);
+    }
+
+    public void disableCache() {
+        cache = null;
+    }
+
+    /**
+     * The cache - its stats show hits and misses.
+     *
+     * @return RowCache - null if not caching.
+     */
+    public RowCache<Column> getCache() {
+        return cache;
+    }
+
+    /**
+     * Buffer updates by this key rather than making each one as it happens.
+     * <p>
+     * Repeated updates to the same record are merged so only its latest values
+     * are written. They are written in JDBC batches when enough records are
+     * waiting, when the oldest has waited long enough, on sync and at
+     * shutdown.
+     * <p>
+     * updateRecord by the key then only records the changed fields (see
+     * getChanges) and clears the changes. It always returns 1 - failures
+     * arrive at the onError callback later. Reads do not see the updates until
+     * they are written.
+     * <p>
+     * Updates made in a transaction are not buffered - they are made at once
+     * as part of it. Buffered updates are never written in a transaction so a
+     * write in one that must follow them fails if any are waiting - sync
+     * before the transaction starts.
+     *
+     * @param key            Set - updates by this key are buffered.
+     * @param maxPending     int - write when this many records are waiting.
+     * @param maxDelayMillis long - write at least this often.
+     * @param onError        BiConsumer - given the records that failed and why - null to just log it.
+     */
+    public void enableWriteBehind(Set<Column> key, int maxPending, long maxDelayMillis, BiConsumer<List<Fields<Column>>, SQLException> onError) throws SQLException {
+        disableWriteBehind();
+        writeBehind = new WriteBehind(key, maxPending, maxDelayMillis, onError);
+    }
+
+    /**
+     * Write anything buffered and go back to updating immediately.
+     *
+     * @throws SQLException
+     */
+    public void disableWriteBehind() throws SQLException {
+        WriteBehind writeBehind = this.writeBehind;
+        this.writeBehind = null;
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+    }
+
+    /**
+     * The write-behind buffer - its stats show how much was saved.
+     *
+     * @return WriteBehind - null if updating immediately.
+     */
+    public WriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * How many queries of each kind, how long they took and how many rows.
+     * <p>
+     * Also visible over JMX.
      *
-     * @param column
-     * @return
+     * @return QueryMetrics
      */
-    public final Integer getInteger(Column column) {
-        return fields.getInteger(column);
+    public QueryMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Gets the field as a Long.
-     *
-     * @param column
-     * @return
+     * Drop everything from the cache.
+     * <p>
+     * Call this if you change the table in ways the Table cannot see.
      */
-    public final Long getLong(Column column) {
-        return fields.getLong(column);
+    public void invalidateCache() {
+        RowCache<Column> cache = this.cache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    // Writing by this key - before so the writer doesn't see it and after so no one else does.
+    private void invalidateCache(Set<Column> key, Fields<Column> from) {
+        RowCache<Column> cache = this.cache;
+        if (cache != null) {
+            cache.invalidate(key, from);
+        }
     }
 
     /**
-     * Gets the field as a Timestamp
+     * Switch to PackedFields for the records read.
+     * <p>
+     * They hold their values in primitive arrays rather than a Field object
+     * per column so reading large numbers of rows allocates much less.
      *
-     * @param column
-     * @return
+     * @param packed boolean
      */
-    public final Timestamp getTimestamp(Column column) {
-        return fields.getTimestamp(column);
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    public boolean isPacked() {
+        return packed;
     }
 
     /**
-     * Set a field.
+     * A new Fields for a record, starting as a copy of the one offered.
      *
-     * @param column Column
-     * @param f      Field
+     * @param from Fields
+     * @return Fields
      */
-    public void setField(Column column, Field<Column> f) {
-        fields.setField(column, f);
+    protected Fields<Column> newFields(Fields<Column> from) {
+        return packed ? new PackedFields<>(columns, from) : new Fields<>(columns, from);
     }
 
     /**
-     * Set a field from a String.
+     * Which of these columns currently have a value.
      *
-     * @param column
-     * @param s
+     * @param which Set
+     * @return Set
      */
-    public void setField(Column column, String s) {
-        fields.setField(column, s);
+    private Set<Column> present(Set<Column> which, Fields<Column> from) {
+        Set<Column> present = EnumSet.noneOf(columns.iterator().next().getDeclaringClass());
+        for (Column col : which) {
+            if (from.getField(col) != null) {
+                present.add(col);
+            }
+        }
+        return present;
+    }
+
+    // The update of the present non-key columns by the key.
+    private Parameterised<Column> updateParameterised(Set<Column> key, Set<Column> columns, Fields<Column> from) {
+        Set<Column> update = present(columns, from);
+        update.removeAll(key);
+        return parameterise(Operation.Update, update, key, null);
     }
 
     /**
-     * Set a field from a Boolean.
+     * Find (or build the first time) the parameterised query of this shape.
      *
-     * @param column
-     * @param b
-     */
-    public void setField(Column column, Boolean b) {
-        fields.setField(column, b);
+     * @param op      Operation
+     * @param columns Set - the columns to read/write.
+     * @param key     Set
+     * @param orKey   Set
+     * @return Parameterised
+     */
+    private Parameterised<Column> parameterise(Operation op, Set<Column> columns, Set<Column> key, Set<Column> orKey) {
+        Shape shape = new Shape(op, columns, key, orKey);
+        Parameterised<Column> query = parameterised.get(shape);
+        if (query == null) {
+            List<Column> slots = new ArrayList<>();
+            String sql = op.build(this, columns, key, orKey, slots);
+            query = new Parameterised<>(sql, slots, op == Operation.Read ? selected(columns) : null);
+            // Keyed by a copy - the sets are the caller's.
+            Parameterised<Column> already = parameterised.putIfAbsent(shape.copy(), query);
+            if (already != null) {
+                query = already;
+            }
+        }
+        return query;
     }
 
     /**
-     * Set a field from a boolean.
+     * Get the prepared statement for the query and bind the field values to
+     * its slots.
      *
-     * @param column
-     * @param b
+     * @param query Parameterised
+     * @param from  Fields
+     * @return PreparedStatement - release it when done.
+     * @throws SQLException
      */
-    public void setField(Column column, boolean b) {
-        fields.setField(column, b);
+    private PreparedStatement bind(Parameterised<Column> query, Fields<Column> from) throws SQLException {
+        PreparedStatement ps = db.prepare(query.sql);
+        try {
+            return bind(ps, query, from);
+        } catch (SQLException | RuntimeException e) {
+            db.releaseStatement(ps, true);
+            throw e;
+        }
     }
 
     /**
-     * Set a field from a Long.
+     * Bind the field values to the slots of an already prepared statement.
      *
-     * @param column
-     * @param l
+     * @param ps    PreparedStatement
+     * @param query Parameterised
+     * @param from  Fields
+     * @return PreparedStatement
+     * @throws SQLException
      */
-    public void setField(Column column, Long l) {
-        fields.setField(column, l);
+    private PreparedStatement bind(PreparedStatement ps, Parameterised<Column> query, Fields<Column> from) throws SQLException {
+        for (int i = 0; i < query.slots.size(); i++) {
+            Column col = query.slots.get(i);
+            Field<Column> f = from.getField(col);
+            if (f == null) {
+                throw new NullPointerException("Field " + col + " missing");
+            }
+            f.bind(ps, i + 1);
+        }
+        return ps;
     }
 
     /**
-     * Set a field from a long.
-     *
-     * @param column
-     * @param l
+     * The operations that can be parameterised.
      */
-    public void setField(Column column, long l) {
-        fields.setField(column, l);
+    enum Operation {
+
+        Read {
+            @Override
+            <C extends Enum<C> & Columns> String build(Table<C> t, Set<C> columns, Set<C> key, Set<C> orKey, List<C> slots) {
+                return t.readQuery(columns, key, orKey, slots);
+            }
+        },
+        Insert {
+            @Override
+            <C extends Enum<C> & Columns> String build(Table<C> t, Set<C> columns, Set<C> key, Set<C> orKey, List<C> slots) {
+                return t.insertQuery(columns, slots);
+            }
+        },
+        Update {
+            @Override
+            <C extends Enum<C> & Columns> String build(Table<C> t, Set<C> columns, Set<C> key, Set<C> orKey, List<C> slots) {
+                return t.updateQuery(key, columns, slots);
+            }
+        },
+        Delete {
+            @Override
+            <C extends Enum<C> & Columns> String build(Table<C> t, Set<C> columns, Set<C> key, Set<C> orKey, List<C> slots) {
+                return t.deleteQuery(key, slots);
+            }
+        };
+
+        // Each must build its query.
+        abstract <C extends Enum<C> & Columns> String build(Table<C> t, Set<C> columns, Set<C> key, Set<C> orKey, List<C> slots);
     }
 
     /**
-     * Set a field from an Enum.
-     *
-     * @param column
-     * @param e
+     * The shape of a query - identifies a parameterised query.
      */
-    public void setField(Column column, Enum e) {
-        fields.setField(column, e);
+    static final class Shape {
+        final Operation op;
+        final Set<?> columns;
+        final Set<?> key;
+        final Set<?> orKey;
+
+        Shape(Operation op, Set<?> columns, Set<?> key, Set<?> orKey) {
+            this.op = op;
+            this.columns = columns;
+            this.key = key;
+            this.orKey = orKey;
+        }
+
+        // One that can't change under us.
+        Shape copy() {
+            return new Shape(op, copy(columns), copy(key), copy(orKey));
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static Set<?> copy(Set<?> s) {
+            if (s == null) {
+                return null;
+            }
+            if (s instanceof EnumSet) {
+                return EnumSet.copyOf((EnumSet) s);
+            }
+            // copyOf can't tell the type of an empty one.
+            return s.isEmpty() ? Collections.emptySet() : EnumSet.copyOf((Collection) s);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            Shape it = (Shape) o;
+            return op == it.op
+                    && Objects.equals(columns, it.columns)
+                    && Objects.equals(key, it.key)
+                    && Objects.equals(orKey, it.orKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(op, columns, key, orKey);
+        }
     }
 
     /**
-     * Set a field from a Timestamp.
-     *
-     * @param column
-     * @param ts
+     * A parameterised query and the columns whose values fill its slots - in
+     * order.
      */
-    public void setField(Column column, Timestamp ts) {
-        fields.setField(column, ts);
+    static final class Parameterised<Column> {
+        final String sql;
+        final List<Column> slots;
+        // The sql around the slots - one more than there are slots.
+        final String[] parts;
+        // The columns a read selects in the order it selects them - null if not a read.
+        final List<Column> selected;
+
+        Parameterised(String sql, List<Column> slots) {
+            this(sql, slots, null);
+        }
+
+        Parameterised(String sql, List<Column> slots, List<Column> selected) {
+            this.slots = slots;
+            this.selected = selected;
+            // Split where the slots were marked - any ? in the sql itself is left alone.
+            parts = sql.split(SLOT, -1);
+            if (parts.length != slots.size() + 1) {
+                throw new IllegalStateException(slots.size() + " slots but " + (parts.length - 1) + " marked in " + sql);
+            }
+            this.sql = String.join("?", parts);
+        }
     }
 
     /**
-     * Clear a field.
+     * Fill the slots of a query with the values of the fields as literals -
+     * for when we are not using prepared statements.
+     * <p>
+     * Much cheaper than building the whole query again.
      *
-     * @param which
+     * @param query Parameterised
+     * @param from  Fields
+     * @return String
      */
-    public void clear(Set<Column> which) {
-        fields.clear(which);
+    private String fill(Parameterised<Column> query, Fields<Column> from) {
+        // Allow a bit for each value.
+        StringBuilder s = new StringBuilder(query.sql.length() + 16 * query.slots.size());
+        s.append(query.parts[0]);
+        for (int i = 0; i < query.slots.size(); i++) {
+            Column col = query.slots.get(i);
+            Field<Column> f = from.getField(col);
+            if (f == null) {
+                throw new NullPointerException("Field " + col + " missing");
+            }
+            s.append(literal(f)).append(query.parts[i + 1]);
+        }
+        return s.toString();
     }
 
     /**
@@ -1139,6 +2919,464 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
         return "Table: \"" + tableName + "\" Fields: " + fields;
     }
 
+    /**
+     * Buffers updates by a key, merging those to the same record, and writes
+     * them in batches.
+     * <p>
+     * See enableWriteBehind.
+     */
+    public class WriteBehind implements AutoCloseable {
+        // Updates by this key are buffered.
+        final Set<Column> key;
+        // Write when this many are waiting.
+        private final int maxPending;
+        // Told about failures.
+        private final BiConsumer<List<Fields<Column>>, SQLException> onError;
+        // Waiting to be written - by key value. Each holds the key values and the latest of everything changed.
+        private Map<String, Fields<Column>> pending = new LinkedHashMap<>();
+        // Which columns need writing in each.
+        private Map<String, Set<Column>> dirty = new HashMap<>();
+        // Only one write at a time so the updates to a record land in order.
+        private final Object writing = new Object();
+        // Writes on time.
+        private final ScheduledExecutorService timer;
+        // Writes at shutdown.
+        private final Thread hook;
+        // Closed yet?
+        private volatile boolean closed = false;
+
+        // Observable.
+        public final NumberStat updates = new NumberStat("Updates");
+        public final NumberStat merged = new NumberStat("Merged");
+        public final NumberStat written = new NumberStat("Written");
+        public final NumberStat batches = new NumberStat("Batches");
+        public final NumberStat failures = new NumberStat("Failures");
+        public final Stats stats = new Stats(updates, merged, written, batches, failures);
+
+        WriteBehind(Set<Column> key, int maxPending, long maxDelayMillis, BiConsumer<List<Fields<Column>>, SQLException> onError) {
+            // Sanity checks.
+            if (maxPending <= 0 || maxDelayMillis <= 0) {
+                throw new IllegalArgumentException("Pending and delay must be greater than zero.");
+            }
+            this.key = key;
+            this.maxPending = maxPending;
+            this.onError = onError;
+            timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+                Thread t = new Thread(r, "Table-writeBehind-" + tableName);
+                t.setDaemon(true);
+                return t;
+            });
+            timer.scheduleWithFixedDelay(this::flush, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+            hook = new Thread(this::flush, "Table-writeBehind-" + tableName + "-shutdown");
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+
+        // Merge the changes into what is waiting.
+        void update(Set<Column> columns, Fields<Column> from) throws SQLException {
+            if (closed) {
+                throw new SQLException("Write behind closed.");
+            }
+            Set<Column> changed = present(columns, from);
+            changed.retainAll(from.getChanges());
+            changed.removeAll(key);
+            from.clearChanges();
+            if (changed.isEmpty()) {
+                return;
+            }
+            boolean full;
+            String k = keyOf(key, from);
+            synchronized (this) {
+                updates.inc();
+                Fields<Column> waiting = pending.get(k);
+                if (waiting == null) {
+                    waiting = new Fields<>(Table.this.columns);
+                    waiting.copy(from, key);
+                    pending.put(k, waiting);
+                    dirty.put(k, changed);
+                } else {
+                    merged.inc();
+                    dirty.get(k).addAll(changed);
+                }
+                waiting.copy(from, changed);
+                full = pending.size() >= maxPending;
+            }
+            if (full) {
+                sync();
+            }
+        }
+
+        // A delete by this key drops what is waiting for the record - by any other key we can't tell so write it all.
+        void deleting(Set<Column> by, Fields<Column> from) throws SQLException {
+            if (by.equals(key)) {
+                String k = keyOf(key, from);
+                synchronized (this) {
+                    pending.remove(k);
+                    dirty.remove(k);
+                }
+            } else {
+                sync();
+            }
+        }
+
+        /**
+         * Write everything waiting now.
+         * <p>
+         * Not in a transaction - if anything is waiting it fails instead. Sync
+         * before the transaction starts.
+         *
+         * @throws SQLException - if any of it failed. The onError callback is told too.
+         */
+        public void sync() throws SQLException {
+            if (!inTransaction()) {
+                writePending();
+            }
+        }
+
+        // Nothing can be written in a transaction. Not in it - rolling it back
+        // would lose them. Not on another connection while it waits - that could
+        // need the locks the transaction holds.
+        private boolean inTransaction() throws SQLException {
+            if (!db.isInTransaction()) {
+                return false;
+            }
+            int waiting = getPending();
+            if (waiting > 0) {
+                throw new SQLException(waiting + " records waiting to be written to " + tableName + " in a transaction - sync before it starts.");
+            }
+            return true;
+        }
+
+        // Write everything waiting - on this thread.
+        private void writePending() throws SQLException {
+            synchronized (writing) {
+                Map<String, Fields<Column>> rows;
+                Map<String, Set<Column>> columns;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    rows = pending;
+                    columns = dirty;
+                    pending = new LinkedHashMap<>();
+                    dirty = new HashMap<>();
+                }
+                // Batch together those with the same columns to write.
+                Map<Set<Column>, List<Fields<Column>>> shapes = new LinkedHashMap<>();
+                for (Map.Entry<String, Fields<Column>> e : rows.entrySet()) {
+                    shapes.computeIfAbsent(columns.get(e.getKey()), c -> new ArrayList<>()).add(e.getValue());
+                }
+                SQLException failed = null;
+                for (Map.Entry<Set<Column>, List<Fields<Column>>> shape : shapes.entrySet()) {
+                    try {
+                        write(shape.getKey(), shape.getValue());
+                    } catch (SQLException ex) {
+                        failures.inc();
+                        failed(shape.getValue(), ex);
+                        if (failed == null) {
+                            failed = ex;
+                        }
+                    }
+                }
+                if (failed != null) {
+                    throw failed;
+                }
+            }
+        }
+
+        // From the timer and the shutdown hook - failures have gone to the callback.
+        private void flush() {
+            try {
+                sync();
+            } catch (SQLException | RuntimeException ex) {
+                log.debug("Write behind failed: " + ex);
+            }
+        }
+
+        // One batch.
+        private void write(Set<Column> columns, List<Fields<Column>> rows) throws SQLException {
+            Parameterised<Column> update = parameterise(Operation.Update, columns, key, null);
+            logSql(update.sql + " * " + rows.size());
+            PreparedStatement ps = null;
+            long start = System.nanoTime();
+            long done = -1;
+            try {
+                for (Fields<Column> row : rows) {
+                    ps = ps == null ? bind(update, row) : bind(ps, update, row);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                done = rows.size();
+                written.add(done);
+                batches.inc();
+            } finally {
+                if (ps != null) {
+                    metrics.record(update.sql, start, done);
+                    release(ps, done < 0);
+                }
+                // Anything read while they were waiting is stale.
+                for (Fields<Column> row : rows) {
+                    invalidateCache(key, row);
+                }
+            }
+        }
+
+        private void failed(List<Fields<Column>> rows, SQLException ex) {
+            if (onError != null) {
+                try {
+                    onError.accept(rows, ex);
+                } catch (RuntimeException e) {
+                    log.warn("Write behind error handler failed", e);
+                }
+            } else {
+                log.warn("Write behind of " + rows.size() + " records to " + tableName + " failed", ex);
+            }
+        }
+
+        /**
+         * How many records are waiting.
+         *
+         * @return int
+         */
+        public synchronized int getPending() {
+            return pending.size();
+        }
+
+        /**
+         * Write everything and stop.
+         *
+         * @throws SQLException
+         */
+        @Override
+        public void close() throws SQLException {
+            if (!closed) {
+                // Before it stops - they can still be written later.
+                inTransaction();
+                closed = true;
+                timer.shutdownNow();
+                try {
+                    Runtime.getRuntime().removeShutdownHook(hook);
+                } catch (IllegalStateException ex) {
+                    // Shutting down already - the hook is doing it.
+                }
+                sync();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "WriteBehind(" + getPending() + "): " + stats;
+        }
+    }
+
+    // Give back a batched statement - emptying the batch if it failed.
+    private void release(PreparedStatement ps, boolean failed) {
+        try {
+            if (failed) {
+                // It stays in the connection's cache.
+                ps.clearBatch();
+            }
+        } catch (SQLException ex) {
+            // Don't hide why it failed.
+            log.debug("Clear batch failed: " + ex);
+        } finally {
+            db.releaseStatement(ps, failed);
+        }
+    }
+
+    /**
+     * Something that inserts many records quickly.
+     * <p>
+     * Fill the fields and call add for each record. Always close at the end.
+     */
+    protected interface Inserter {
+
+        public void add() throws SQLException;
+
+        public void close() throws SQLException;
+
+    }
+
+    /**
+     * The fastest inserter the database can handle.
+     * <p>
+     * JDBC batches if the driver supports them, otherwise the UNION ALL trick.
+     *
+     * @param fields EnumSet
+     * @return Inserter
+     */
+    protected Inserter inserter(EnumSet<Column> fields) {
+        return db.batchUpdates && db.dialect.preferBatch() ? new BatchInserter(fields) : new QuickInserter(fields);
+    }
+
+    /**
+     * Uses JDBC batches of a prepared insert to speed up inserts.
+     * <p>
+     * You must supply the columns you plan to insert to the constructor.
+     * <p>
+     * You must ONLY fill these fields at each call of add. Any left empty are
+     * inserted as nulls.
+     * <p>
+     * If asynchronous, batches are executed on a separate thread while the next
+     * one is being filled. Any failure is thrown from the following add or the
+     * close.
+     */
+    protected class BatchInserter implements Inserter {
+        // How many to add to a batch before executing it.
+        protected final int batchSize;
+        // The insert.
+        protected final Parameterised<Column> insert;
+        // The batch being filled.
+        protected List<Fields<Column>> batch;
+        // Flushes batches in the background - null if synchronous.
+        protected final ExecutorService flusher;
+        // Limits the batches in flight so we don't run away from the database.
+        private final Semaphore inFlight = new Semaphore(2);
+        // The first failure in the background.
+        private final AtomicReference<SQLException> failed = new AtomicReference<>();
+        // How many we have inserted so far.
+        protected final AtomicLong inserted = new AtomicLong();
+        // When we started.
+        protected final long start = System.currentTimeMillis();
+
+        public BatchInserter(EnumSet<Column> fields) {
+            this(fields, QuickInserter.MAX, false);
+        }
+
+        public BatchInserter(EnumSet<Column> fields, int batchSize, boolean async) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Batch size must be greater than zero.");
+            }
+            this.batchSize = batchSize;
+            insert = parameterise(Operation.Insert, fields, null, null);
+            batch = new ArrayList<>(batchSize);
+            flusher = async ? Executors.newSingleThreadExecutor((Runnable r) -> {
+                Thread t = new Thread(r, "Table-batchInsert-" + tableName);
+                t.setDaemon(true);
+                return t;
+            }) : null;
+        }
+
+        @Override
+        public void add() throws SQLException {
+            checkFailed();
+            // Take a copy - the fields will change before we execute.
+            batch.add(newFields(fields));
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (!batch.isEmpty()) {
+                    // Force an update if anything left to update.
+                    flush();
+                }
+                if (flusher != null) {
+                    flusher.shutdown();
+                    try {
+                        flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for batches to complete.", ex);
+                    }
+                }
+                checkFailed();
+            } finally {
+                if (flusher != null) {
+                    flusher.shutdownNow();
+                }
+            }
+            log.debug("Inserted " + inserted + " into " + tableName + " at " + getRowsPerSecond() + " rows/sec");
+        }
+
+        /**
+         * How fast it's going.
+         *
+         * @return rows inserted per second since construction.
+         */
+        public long getRowsPerSecond() {
+            long millis = Math.max(1, System.currentTimeMillis() - start);
+            return inserted.get() * 1000 / millis;
+        }
+
+        public long getInserted() {
+            return inserted.get();
+        }
+
+        private void flush() throws SQLException {
+            final List<Fields<Column>> full = batch;
+            batch = new ArrayList<>(batchSize);
+            if (flusher == null) {
+                execute(full);
+            } else {
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted waiting to flush.", ex);
+                }
+                flusher.execute(() -> {
+                    try {
+                        execute(full);
+                    } catch (SQLException ex) {
+                        failed.compareAndSet(null, ex);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+
+        private void execute(List<Fields<Column>> rows) throws SQLException {
+            logSql(insert.sql + " * " + rows.size());
+            PreparedStatement ps = null;
+            long start = System.nanoTime();
+            long done = -1;
+            try {
+                for (Fields<Column> row : rows) {
+                    if (ps == null) {
+                        ps = db.prepare(insert.sql);
+                    }
+                    bind(ps, row);
+                    ps.addBatch();
+                }
+                if (ps != null) {
+                    ps.executeBatch();
+                    inserted.addAndGet(rows.size());
+                    done = rows.size();
+                    invalidateCache();
+                }
+            } finally {
+                if (ps != null) {
+                    metrics.record(insert.sql, start, done);
+                    release(ps, done < 0);
+                }
+            }
+        }
+
+        // Missing fields are inserted as nulls.
+        private void bind(PreparedStatement ps, Fields<Column> row) throws SQLException {
+            for (int i = 0; i < insert.slots.size(); i++) {
+                Column col = insert.slots.get(i);
+                Field<Column> f = row.getField(col);
+                if (f != null) {
+                    f.bind(ps, i + 1);
+                } else {
+                    col.getType().setNull(ps, i + 1);
+                }
+            }
+        }
+
+        private void checkFailed() throws SQLException {
+            SQLException e = failed.getAndSet(null);
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+
     /**
      * Uses the UNION ALL trick (or similar) to speed up updates.
      * <p>
@@ -1148,7 +3386,7 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
      * <p>
      * You must ONLY fill these fields at each call of add.
      */
-    protected class QuickInserter {
+    protected class QuickInserter implements Inserter {
         // Grabs that many before forcing an emit.
 
         protected static final int MAX = 500;
@@ -1186,24 +3424,13 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
 
         public QuickInserter(EnumSet<Column> fields) {
             this.fields = fields;
-            switch (db.type) {
-                case Sql2005:
-                    insert = "INSERT INTO " + tableName + "(" + getColumns(fields, false, false) + ")\r\nSELECT ";
-                    sep = new Separator("\r\nUNION ALL SELECT ");
-                    end = "";
-                    break;
-
-                case Sql2008:
-                    insert = "INSERT INTO " + tableName + "(" + getColumns(fields, false, false) + ")\r\nVALUES (";
-                    sep = new Separator("),\r\n(");
-                    end = ")";
-                    break;
-
-                default:
-                    throw new IllegalStateException("Unrecognised db type.");
-            }
+            Dialect dialect = db.dialect;
+            insert = dialect.insertPrefix(tableName, insertColumns(fields));
+            sep = new Separator(dialect.insertSeparator());
+            end = dialect.insertSuffix();
         }
 
+        @Override
         public void add() throws SQLException {
             s.append(sep.sep()).append(getFields(true));
             // Count them.
@@ -1217,6 +3444,7 @@ public class Table<Column extends Enum<Column> & Table.Columns> {
             }
         }
 
+        @Override
         public void close() throws SQLException {
             if (count > 0) {
                 // Force an update if anything left to update.
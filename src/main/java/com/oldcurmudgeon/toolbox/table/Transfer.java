@@ -0,0 +1,586 @@
+/*
+ * Copyright 2013 OldCurmudgeon.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oldcurmudgeon.toolbox.table;
+
+import com.oldcurmudgeon.toolbox.table.Field.Type;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams the records of a Table to and from a channel.
+ * <p>
+ * Exports read through a cursor that reuses one set of fields and imports go
+ * through a BatchInserter so neither holds more than a buffer and a batch
+ * however big the table.
+ * <p>
+ * The file starts with the names of the columns so it can be loaded into a
+ * table with its columns in a different order. Columns the table doesn't
+ * have are skipped.
+ *
+ * @author OldCurmudgeon
+ */
+public class Transfer {
+
+    // Size of the buffers.
+    private static final int BUFFER = 64 * 1024;
+    // Rows fetched at a time.
+    private static final int FETCH = 1000;
+    // Rows inserted in a batch.
+    private static final int BATCH = 1000;
+
+    /**
+     * The formats.
+     */
+    public enum Format {
+
+        /**
+         * Compact binary.
+         * <p>
+         * "TBL1", the column count and each column's name and type. Then each
+         * row is a 1, a bit per column that is null and the values of the
+         * rest. A 0 ends it.
+         */
+        Binary {
+            // "TBL1"
+            private static final int MAGIC = 0x54424C31;
+
+            @Override
+            void writeHeader(Out out, List<String> names, List<Type> types) throws IOException {
+                out.ensure(6);
+                out.buffer.putInt(MAGIC);
+                out.buffer.putShort((short) names.size());
+                for (int i = 0; i < names.size(); i++) {
+                    out.string(names.get(i));
+                    out.ensure(1);
+                    out.buffer.put((byte) types.get(i).ordinal());
+                }
+            }
+
+            @Override
+            void writeRow(Out out, Object[] row, List<Type> types) throws IOException {
+                // The nulls.
+                byte[] nulls = new byte[(row.length + 7) / 8];
+                for (int i = 0; i < row.length; i++) {
+                    if (row[i] == null) {
+                        nulls[i >>> 3] |= 1 << (i & 7);
+                    }
+                }
+                out.ensure(1 + nulls.length);
+                out.buffer.put((byte) 1).put(nulls);
+                for (int i = 0; i < row.length; i++) {
+                    if (row[i] != null) {
+                        value(out, types.get(i), row[i]);
+                    }
+                }
+            }
+
+            private void value(Out out, Type type, Object v) throws IOException {
+                switch (type) {
+                    case Boolean:
+                        out.ensure(1);
+                        out.buffer.put((byte) ((Boolean) v ? 1 : 0));
+                        break;
+
+                    case Integer:
+                        out.ensure(4);
+                        out.buffer.putInt((Integer) v);
+                        break;
+
+                    case Long:
+                        out.ensure(8);
+                        out.buffer.putLong((Long) v);
+                        break;
+
+                    case Timestamp:
+                        Timestamp t = (Timestamp) v;
+                        out.ensure(12);
+                        out.buffer.putLong(t.getTime()).putInt(t.getNanos());
+                        break;
+
+                    default:
+                        // Strings and Enums.
+                        out.string(v.toString());
+                        break;
+                }
+            }
+
+            @Override
+            void writeEnd(Out out) throws IOException {
+                out.ensure(1);
+                out.buffer.put((byte) 0);
+            }
+
+            @Override
+            List<String> readHeader(In in, List<Type> types) throws IOException {
+                in.ensure(6);
+                if (in.buffer.getInt() != MAGIC) {
+                    throw new IOException("Not a table export.");
+                }
+                int n = in.buffer.getShort();
+                List<String> names = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    names.add(in.string());
+                    in.ensure(1);
+                    types.add(Type.values()[in.buffer.get()]);
+                }
+                return names;
+            }
+
+            @Override
+            boolean readRow(In in, Field[] row, List<Type> types) throws IOException {
+                in.ensure(1);
+                if (in.buffer.get() == 0) {
+                    return false;
+                }
+                byte[] nulls = new byte[(row.length + 7) / 8];
+                in.ensure(nulls.length);
+                in.buffer.get(nulls);
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (nulls[i >>> 3] & (1 << (i & 7))) == 0 ? value(in, types.get(i)) : null;
+                }
+                return true;
+            }
+
+            private Field value(In in, Type type) throws IOException {
+                switch (type) {
+                    case Boolean:
+                        in.ensure(1);
+                        return new Field(in.buffer.get() != 0);
+
+                    case Integer:
+                        in.ensure(4);
+                        return new Field(in.buffer.getInt());
+
+                    case Long:
+                        in.ensure(8);
+                        return new Field(in.buffer.getLong());
+
+                    case Timestamp:
+                        in.ensure(12);
+                        Timestamp t = new Timestamp(in.buffer.getLong());
+                        t.setNanos(in.buffer.getInt());
+                        return new Field(t);
+
+                    default:
+                        return new Field(in.string());
+                }
+            }
+
+        },
+        /**
+         * Comma separated values with the column names in the first line.
+         * <p>
+         * Values are quoted when they need to be. An empty value is a null, ""
+         * is an empty String. Types are not recorded - values are parsed as the
+         * types of the table's columns.
+         */
+        Csv {
+            @Override
+            void writeHeader(Out out, List<String> names, List<Type> types) throws IOException {
+                line(out, names.toArray());
+            }
+
+            @Override
+            void writeRow(Out out, Object[] row, List<Type> types) throws IOException {
+                line(out, row);
+            }
+
+            private void line(Out out, Object[] values) throws IOException {
+                StringBuilder s = new StringBuilder();
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        s.append(',');
+                    }
+                    if (values[i] != null) {
+                        String v = values[i].toString();
+                        if (v.isEmpty() || v.indexOf(',') >= 0 || v.indexOf('"') >= 0 || v.indexOf('\r') >= 0 || v.indexOf('\n') >= 0) {
+                            s.append('"').append(v.replace("\"", "\"\"")).append('"');
+                        } else {
+                            s.append(v);
+                        }
+                    }
+                }
+                s.append("\r\n");
+                out.bytes(s.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            void writeEnd(Out out) {
+                // The end of the file is the end.
+            }
+
+            @Override
+            List<String> readHeader(In in, List<Type> types) throws IOException {
+                List<String> names = new ArrayList<>();
+                if (!line(in, names)) {
+                    throw new EOFException("No header.");
+                }
+                // Untyped.
+                types.addAll(Collections.nCopies(names.size(), (Type) null));
+                return names;
+            }
+
+            @Override
+            boolean readRow(In in, Field[] row, List<Type> types) throws IOException {
+                List<String> values = new ArrayList<>(row.length);
+                if (!line(in, values)) {
+                    return false;
+                }
+                if (values.size() != row.length) {
+                    throw new IOException("Expected " + row.length + " values but found " + values.size() + ": " + values);
+                }
+                for (int i = 0; i < row.length; i++) {
+                    String v = values.get(i);
+                    row[i] = v != null && types.get(i) != null ? types.get(i).parse(v) : null;
+                }
+                return true;
+            }
+
+            // Parse a line - false at the end. The delimiters are all ASCII so it's done on the bytes.
+            private boolean line(In in, List<String> values) throws IOException {
+                ByteString value = new ByteString();
+                boolean quoted = false;
+                boolean inQuotes = false;
+                boolean any = false;
+                while (true) {
+                    int b = in.next();
+                    if (b < 0) {
+                        if (!any) {
+                            return false;
+                        }
+                        if (inQuotes) {
+                            throw new EOFException("Unterminated quotes.");
+                        }
+                        values.add(value.toString(quoted));
+                        return true;
+                    }
+                    any = true;
+                    if (inQuotes) {
+                        if (b == '"') {
+                            if (in.peek() == '"') {
+                                in.next();
+                                value.add(b);
+                            } else {
+                                inQuotes = false;
+                            }
+                        } else {
+                            value.add(b);
+                        }
+                    } else if (b == '"') {
+                        inQuotes = quoted = true;
+                    } else if (b == ',') {
+                        values.add(value.toString(quoted));
+                        value.clear();
+                        quoted = false;
+                    } else if (b == '\n') {
+                        values.add(value.toString(quoted));
+                        return true;
+                    } else if (b != '\r') {
+                        value.add(b);
+                    }
+                }
+            }
+
+        };
+
+        abstract void writeHeader(Out out, List<String> names, List<Type> types) throws IOException;
+
+        abstract void writeRow(Out out, Object[] row, List<Type> types) throws IOException;
+
+        abstract void writeEnd(Out out) throws IOException;
+
+        // The names of the columns - their types are added to types, null if not known.
+        abstract List<String> readHeader(In in, List<Type> types) throws IOException;
+
+        // False at the end.
+        abstract boolean readRow(In in, Field[] row, List<Type> types) throws IOException;
+    }
+
+    /**
+     * Write the records of the table to the channel.
+     *
+     * @param <Column>
+     * @param table   Table
+     * @param columns Set - which columns.
+     * @param format  Format
+     * @param out     WritableByteChannel - not closed.
+     * @return long - how many records.
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static <Column extends Enum<Column> & Table.Columns> long export(Table<Column> table, Set<Column> columns, Format format, WritableByteChannel out) throws SQLException, IOException {
+        List<Column> cols = new ArrayList<>(columns);
+        List<String> names = new ArrayList<>(cols.size());
+        List<Type> types = new ArrayList<>(cols.size());
+        for (Column c : cols) {
+            names.add(c.name());
+            types.add(c.getType());
+        }
+        Out o = new Out(out);
+        format.writeHeader(o, names, types);
+        long count = 0;
+        Object[] row = new Object[cols.size()];
+        // Reuse - one set of fields for all of them.
+        try (Table<Column>.Cursor cursor = table.openCursor(columns, null, FETCH, true)) {
+            while (cursor.hasNext()) {
+                Fields<Column> record = cursor.next();
+                for (int i = 0; i < row.length; i++) {
+                    Field<Column> f = record.getField(cols.get(i));
+                    row[i] = f != null ? f.value() : null;
+                }
+                format.writeRow(o, row, types);
+                count += 1;
+            }
+        }
+        format.writeEnd(o);
+        o.flush();
+        return count;
+    }
+
+    /**
+     * Insert the records from the channel into the table.
+     *
+     * @param <Column>
+     * @param table  Table
+     * @param format Format
+     * @param in     ReadableByteChannel - not closed.
+     * @return long - how many records.
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static <Column extends Enum<Column> & Table.Columns> long load(Table<Column> table, Format format, ReadableByteChannel in) throws SQLException, IOException {
+        In i = new In(in);
+        List<Type> types = new ArrayList<>();
+        List<String> names = format.readHeader(i, types);
+        // Which of mine is each - null if I don't have it.
+        Class<Column> universe = table.allColumns().iterator().next().getDeclaringClass();
+        List<Column> cols = new ArrayList<>(names.size());
+        EnumSet<Column> present = EnumSet.noneOf(universe);
+        for (int c = 0; c < names.size(); c++) {
+            Column col = column(universe, names.get(c));
+            if (col != null && table.allColumns().contains(col)) {
+                cols.add(col);
+                present.add(col);
+                // Parse CSV as my types.
+                if (types.get(c) == null) {
+                    types.set(c, col.getType());
+                }
+            } else {
+                cols.add(null);
+            }
+        }
+        if (present.isEmpty()) {
+            throw new IOException("None of " + names + " are in " + table.tableName);
+        }
+        Field[] row = new Field[names.size()];
+        Table<Column>.BatchInserter inserter = table.new BatchInserter(present, BATCH, true);
+        // Why it failed - if it did.
+        Throwable failed = null;
+        try {
+            while (format.readRow(i, row, types)) {
+                table.clear(present);
+                for (int c = 0; c < row.length; c++) {
+                    if (cols.get(c) != null && row[c] != null) {
+                        table.setField(cols.get(c), row[c]);
+                    }
+                }
+                inserter.add();
+            }
+        } catch (Throwable t) {
+            failed = t;
+            throw t;
+        } finally {
+            try {
+                inserter.close();
+            } catch (SQLException ex) {
+                if (failed == null) {
+                    throw ex;
+                }
+                // Keep it with the real reason.
+                failed.addSuppressed(ex);
+            }
+        }
+        return inserter.getInserted();
+    }
+
+    private static <Column extends Enum<Column>> Column column(Class<Column> universe, String name) {
+        try {
+            return Enum.valueOf(universe, name);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Buffered writes to a channel.
+     */
+    static final class Out {
+        final WritableByteChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+
+        Out(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        // Make room for n bytes.
+        void ensure(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+            }
+        }
+
+        void bytes(byte[] b) throws IOException {
+            for (int done = 0; done < b.length; ) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), b.length - done);
+                buffer.put(b, done, n);
+                done += n;
+            }
+        }
+
+        // Length then UTF-8.
+        void string(String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            length(b.length);
+            bytes(b);
+        }
+
+        // Seven bits at a time - most strings are short.
+        void length(int n) throws IOException {
+            ensure(5);
+            while ((n & ~0x7F) != 0) {
+                buffer.put((byte) (n & 0x7F | 0x80));
+                n >>>= 7;
+            }
+            buffer.put((byte) n);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Buffered reads from a channel.
+     */
+    static final class In {
+        final ReadableByteChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+
+        In(ReadableByteChannel channel) {
+            this.channel = channel;
+            // Nothing there yet.
+            buffer.flip();
+        }
+
+        // At least n bytes there - or the end.
+        private boolean fill(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                buffer.compact();
+                try {
+                    while (buffer.position() < n) {
+                        if (channel.read(buffer) < 0) {
+                            return false;
+                        }
+                    }
+                } finally {
+                    buffer.flip();
+                }
+            }
+            return true;
+        }
+
+        void ensure(int n) throws IOException {
+            if (!fill(n)) {
+                throw new EOFException();
+            }
+        }
+
+        // The next byte - -1 at the end.
+        int next() throws IOException {
+            return fill(1) ? buffer.get() & 0xFF : -1;
+        }
+
+        int length() throws IOException {
+            int n = 0;
+            for (int shift = 0; ; shift += 7) {
+                ensure(1);
+                byte b = buffer.get();
+                n |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return n;
+                }
+            }
+        }
+
+        int peek() throws IOException {
+            return fill(1) ? buffer.get(buffer.position()) & 0xFF : -1;
+        }
+
+        String string() throws IOException {
+            int length = length();
+            byte[] b = new byte[length];
+            for (int done = 0; done < length; ) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), length - done);
+                buffer.get(b, done, n);
+                done += n;
+            }
+            return new String(b, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Bytes of a CSV value.
+     */
+    private static final class ByteString {
+        byte[] bytes = new byte[64];
+        int length = 0;
+
+        void add(int b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) b;
+        }
+
+        void clear() {
+            length = 0;
+        }
+
+        // Empty and not quoted is a null.
+        String toString(boolean quoted) {
+            return length > 0 || quoted ? new String(bytes, 0, length, StandardCharsets.UTF_8) : null;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import com.oldcurmudgeon.toolbox.table.Field.Type;
 import com.oldcurmudgeon.toolbox.twiddlers.Sleeps;
 
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.EnumSet;
 
 /**
@@ -84,26 +85,27 @@ public class VersionTable extends Table<VersionTable.Column> {
 
     private final String UNKNOWN = "Unknown-";
 
-    private String newAlias(String version) {
+    private String newAlias(String version) throws SQLException {
         String newAlias = defaultAlias(version);
         if (newAlias == null) {
             newAlias = UNKNOWN + System.currentTimeMillis();
         }
-        reset();
-        setField(Column.Version, version);
-        boolean success = false;
+        Fields<Column> alias = new Fields<>(allColumns());
+        alias.setField(Column.Version, version);
+        String resolved = null;
         do {
             try {
-                setField(Column.Alias, newAlias);
-                insertRecord();
-                success = true;
+                alias.setField(Column.Alias, newAlias);
+                // Insert if absent - if someone else got there first we get theirs.
+                Fields<Column> f = upsertRecords(Collections.singletonList(alias), versionKey, Conflict.Ignore).get(0);
+                resolved = f.getField(Column.Alias).value().toString();
             } catch (SQLException e) {
-                // Try again.
+                // Alias clash - try again.
                 Sleeps.oneTick();
                 newAlias = UNKNOWN + System.currentTimeMillis();
             }
-        } while (!success);
-        return newAlias;
+        } while (resolved == null);
+        return resolved;
     }
 
     private String defaultAlias(String version) {
@@ -134,6 +136,8 @@ public class VersionTable extends Table<VersionTable.Column> {
 
     public VersionTable(Db db) {
         super(db, "Versions", "V", EnumSet.allOf(Column.class));
+        // Aliases never change once made so remember them.
+        enableCache(Integer.parseInt(params.get("VersionCache", "1000")), 0, RowCache.Policy.LRU);
     }
 
     @Override
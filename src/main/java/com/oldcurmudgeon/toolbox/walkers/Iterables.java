@@ -21,7 +21,11 @@ import org.slf4j.LoggerFactory;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tools for iterating.
@@ -225,6 +229,189 @@ public final class Iterables {
 
     }
 
+    /**
+     * Walks the rows of a ResultSet while a background thread reads ahead.
+     * <p>
+     * Each row is copied out as an Object[] of its column values. Always
+     * close it - the ResultSet itself is left for you to close.
+     *
+     * @param r         ResultSet
+     * @param fetchSize int - the first fetch size, grown when we find ourselves waiting.
+     * @param blocks    int - how many blocks of rows to read ahead.
+     * @return PrefetchingResultSetIterator
+     * @throws SQLException
+     */
+    public static PrefetchingResultSetIterator in(final ResultSet r, int fetchSize, int blocks) throws SQLException {
+        return new PrefetchingResultSetIterator(r, fetchSize, blocks);
+    }
+
+    /**
+     * Reads blocks of rows on its own thread into a bounded ring of blocks.
+     * <p>
+     * The consumer processes one block while the next is coming over the
+     * network. Every time the consumer has to wait for a block the fetch size
+     * is doubled (up to MAX_FETCH) so slow round trips are made fewer.
+     * <p>
+     * Closing early stops the reader, cancels the statement if it is still
+     * waiting on the database and waits for the reader to finish so the
+     * ResultSet can then be closed safely.
+     */
+    public static class PrefetchingResultSetIterator extends IN<Object[]>
+            implements CloseableIterator<Object[]>, Iterable<Object[]>, AutoCloseable {
+
+        // Largest fetch size we will grow to.
+        public static final int MAX_FETCH = 10000;
+        // End of the rows.
+        private static final Object[][] END = new Object[0][];
+        // How many reader threads so far - for their names.
+        private static final AtomicInteger readers = new AtomicInteger();
+
+        private final ResultSet r;
+        // The ring of blocks.
+        private final ArrayBlockingQueue<Object[][]> ring;
+        // The reader.
+        private final Thread reader;
+        // Current fetch size - grown by the consumer, used by the reader.
+        private volatile int fetchSize;
+        // Stop reading.
+        private volatile boolean closed = false;
+        // Why the reader stopped - if it failed.
+        private volatile Throwable failed = null;
+        // The block being walked.
+        private Object[][] block = null;
+        // Where we are in it.
+        private int i = 0;
+        // Only once.
+        private boolean used = false;
+
+        public PrefetchingResultSetIterator(ResultSet r, int fetchSize, int blocks) throws SQLException {
+            this.r = r;
+            this.fetchSize = Math.max(1, Math.min(fetchSize, MAX_FETCH));
+            this.ring = new ArrayBlockingQueue<>(Math.max(1, blocks));
+            r.setFetchSize(this.fetchSize);
+            reader = new Thread(this::read, "Prefetch-" + readers.incrementAndGet());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // The reader thread.
+        private void read() {
+            try {
+                int columns = r.getMetaData().getColumnCount();
+                int fetching = fetchSize;
+                boolean more = true;
+                while (more && !closed) {
+                    int size = fetchSize;
+                    if (size != fetching) {
+                        // Grown - just a hint so don't care if it is ignored.
+                        try {
+                            r.setFetchSize(size);
+                        } catch (SQLException ex) {
+                            log.debug("setFetchSize " + size, ex);
+                        }
+                        fetching = size;
+                    }
+                    // Read a block.
+                    ArrayList<Object[]> rows = new ArrayList<>(size);
+                    while (rows.size() < size && (more = r.next())) {
+                        Object[] row = new Object[columns];
+                        for (int c = 0; c < columns; c++) {
+                            row[c] = r.getObject(c + 1);
+                        }
+                        rows.add(row);
+                    }
+                    if (!rows.isEmpty()) {
+                        publish(rows.toArray(new Object[rows.size()][]));
+                    }
+                }
+            } catch (Throwable ex) {
+                // Anything - or they'd think they had all the rows.
+                if (!closed) {
+                    failed = ex;
+                }
+            } finally {
+                // Always tell them it's over - after the blocks they have still to walk.
+                try {
+                    publish(END);
+                } catch (InterruptedException ex) {
+                    // Closed.
+                }
+            }
+        }
+
+        // Into the ring - giving up if closed.
+        private void publish(Object[][] rows) throws InterruptedException {
+            while (!closed && !ring.offer(rows, 100, TimeUnit.MILLISECONDS)) {
+                // Waiting for the consumer.
+            }
+        }
+
+        @Override
+        Object[] getNext() throws Exception {
+            while (block == null || i >= block.length) {
+                if (block == END || closed) {
+                    return null;
+                }
+                block = ring.poll();
+                if (block == null) {
+                    // We are waiting for the database - bigger fetches next time.
+                    fetchSize = Math.min(fetchSize * 2, MAX_FETCH);
+                    block = ring.take();
+                }
+                i = 0;
+                if (block == END && failed != null) {
+                    if (failed instanceof Error) {
+                        throw (Error) failed;
+                    }
+                    throw (Exception) failed;
+                }
+            }
+            return block[i++];
+        }
+
+        @Override
+        public Iterator<Object[]> iterator() {
+            if (used) {
+                throw new IllegalStateException("PrefetchingResultSetIterator already invoked");
+            }
+            used = true;
+            return this;
+        }
+
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        /**
+         * Stop reading ahead and wait for the reader to finish.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (reader.isAlive()) {
+                    // Stuck in the database?
+                    try {
+                        Statement s = r.getStatement();
+                        if (s != null) {
+                            s.cancel();
+                        }
+                    } catch (SQLException ex) {
+                        log.debug("Cancel", ex);
+                    }
+                    // Not interrupted - that can break the connection mid I/O. It sees closed soon enough.
+                }
+                ring.clear();
+                try {
+                    reader.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+    }
+
     /**
      * Makes an Iterable<String> out of an Iterable<Object> by calling toString on each object.
      *